@@ -8,6 +8,7 @@ import java.util.stream.Collectors;
 
 import org.sterl.hash.PasswordHasher;
 import org.sterl.identitystore.api.VerificationResult.Status;
+import org.sterl.identitystore.jfr.IdentityEvent;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -38,7 +39,7 @@ public class Identity {
         VerificationResult result;
         if (this == NOT_FOUND) {
             result = VerificationResult.NOT_FOUND;
-        } else if (hasher.matches(password, hashedPassword)) {
+        } else if (IdentityEvent.hash(username, () -> hasher.matches(password, hashedPassword))) {
             result = new VerificationResult(Status.VALID, 
                     groups == null ? new HashSet<>() : new HashSet<>(groups));
         } else {
@@ -60,7 +61,9 @@ public class Identity {
     /**
      * Adds the given prefix to all stored groups
      * @param groupPrefix the prefix to add
+     * @deprecated use the {@link org.sterl.identitystore.group.GroupMapper} which doesn't modify the groups
      */
+    @Deprecated
     public void prefixRole(final String groupPrefix) {
         final Set<String> newGroups = this.groups.stream().map(g -> groupPrefix + g).collect(Collectors.toSet());
         this.groups.clear();
@@ -1,5 +1,7 @@
 package org.sterl.identitystore.api;
 
+import java.io.Closeable;
+
 import org.sterl.hash.PasswordHasher;
 
 /**
@@ -8,7 +10,7 @@ import org.sterl.hash.PasswordHasher;
  * 
  * @author sterlp
  */
-public interface IdentityStore {
+public interface IdentityStore extends Closeable {
 
     /**
      * Verifies the login of a user using user name and password.
@@ -32,4 +34,12 @@ public interface IdentityStore {
      * @return the used {@link PasswordHasher} to verify the passwords against the store.
      */
     PasswordHasher getPasswordHasher();
+
+    /**
+     * Releases the resources of the store e.g. dedicated connections or background threads,
+     * a wrapping store closes the wrapped stores too. Does nothing by default.
+     */
+    @Override
+    default void close() {
+    }
 }
@@ -1,6 +1,11 @@
 package org.sterl.identitystore.builder;
 
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.sql.DataSource;
 
@@ -9,7 +14,14 @@ import org.sterl.hash.BCryptPbkdf2PasswordHash;
 import org.sterl.hash.PasswordHasher;
 import org.sterl.identitystore.api.IdentityStore;
 import org.sterl.identitystore.cache.CachedIdentityStore;
+import org.sterl.identitystore.cache.HotUsers;
+import org.sterl.identitystore.group.GroupMapper;
+import org.sterl.identitystore.jdbc.Bulkhead;
 import org.sterl.identitystore.jdbc.JdbcIdentityStore;
+import org.sterl.identitystore.jdbc.JdbcSnapshotIdentityStore;
+import org.sterl.identitystore.shard.ConsistentHashShardFunction;
+import org.sterl.identitystore.shard.ShardFunction;
+import org.sterl.identitystore.shard.ShardedIdentityStore;
 
 import lombok.RequiredArgsConstructor;
 
@@ -21,12 +33,28 @@ import lombok.RequiredArgsConstructor;
 public class IdentityStoreBuilder {
 
     private final DataSource dataSource;
+    private final List<DataSource> readReplicas = new ArrayList<>();
+    private Duration replicaBackoff;
+    private Duration snapshotReloadInterval;
+    private String snapshotUsersQuery = JdbcSnapshotIdentityStore.DEFAULT_USERS_QUERY;
+    private String snapshotGroupsQuery = JdbcSnapshotIdentityStore.DEFAULT_GROUPS_QUERY;
+    private int snapshotFetchSize = JdbcSnapshotIdentityStore.DEFAULT_FETCH_SIZE;
     private PasswordHasher passwordHasher;
     private Duration cacheDuration;
     private boolean cachePassword = false;
+    private int offHeapCacheSize = 0;
+    private Path hotUsersFile;
+    private int hotUsersTop = HotUsers.DEFAULT_TOP_USERS;
+    private Duration hotUsersWriteInterval = HotUsers.DEFAULT_WRITE_INTERVAL;
     private String groupsQuery = JdbcIdentityStore.DEFAULT_GROUPS_QUERY;
     private String passwordQuery = JdbcIdentityStore.DEFAULT_PASSWORD_QUERY;
     private String groupPrefix;
+    private GroupMapper groupMapper;
+    private Executor queryExecutor;
+    private Bulkhead bulkhead;
+    private final List<DataSource> additionalShards = new ArrayList<>();
+    private ShardFunction shardFunction;
+    private Executor shardExecutor;
     
     /**
      * Set the {@link PasswordHasher} with the desired configuration.
@@ -75,6 +103,49 @@ public class IdentityStoreBuilder {
         return this;
     }
     
+    /**
+     * Tracks the most frequently verified users and writes the top 1.000 every 5 minutes 
+     * to the given file. {@link #build()} loads the users of the file into the cache, 
+     * before the store is returned. Requires {@link #withCache(Duration)}.
+     * 
+     * @param file the file to store the user names, <code>null</code> to disable it
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withHotUsers(Path file) {
+        return withHotUsers(file, HotUsers.DEFAULT_TOP_USERS, HotUsers.DEFAULT_WRITE_INTERVAL);
+    }
+    
+    /**
+     * Tracks the most frequently verified users and writes them periodically to the given file.
+     * {@link #build()} loads the users of the file into the cache, before the store is returned. 
+     * Requires {@link #withCache(Duration)}.
+     * 
+     * @param file the file to store the user names, <code>null</code> to disable it
+     * @param topUsers the max amount of users to write and to load
+     * @param writeInterval the interval to write the file, <code>null</code> to write it only on close
+     * @return this for chaining
+     * @see HotUsers
+     */
+    public IdentityStoreBuilder withHotUsers(Path file, int topUsers, Duration writeInterval) {
+        this.hotUsersFile = file;
+        this.hotUsersTop = topUsers;
+        this.hotUsersWriteInterval = writeInterval;
+        return this;
+    }
+    
+    /**
+     * Stores the cached identities outside of the java heap, which reduces the GC pauses
+     * for millions of cached identities. Requires {@link #withCache(Duration)}, can't be
+     * combined with {@link #withCachedPassword(boolean)}.
+     * 
+     * @param expectedSize the expected amount of cached identities, <code>0</code> to use the heap
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withOffHeapCache(int expectedSize) {
+        this.offHeapCacheSize = expectedSize;
+        return this;
+    }
+    
     /**
      * Query to load the users groups form the JDBC store e.g.:
      * <pre>select usergroup from groups where username = ?</pre>
@@ -109,19 +180,233 @@ public class IdentityStoreBuilder {
         return this;
     }
     
+    /**
+     * Sets the {@link GroupMapper} to rename, filter, expand and prefix the loaded groups e.g.:
+     * <pre>
+     * GroupMapper.builder()
+     *     .implies("admin", "user", "auditor")
+     *     .prefix("ROLE_")
+     *     .build()
+     * </pre>
+     * Can't be combined with {@link #withGroupPrefix(String)}, use {@link GroupMapper.Builder#prefix(String)} instead.
+     * 
+     * @param groupMapper the {@link GroupMapper} to use, <code>null</code> to reset
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withGroupMapper(GroupMapper groupMapper) {
+        this.groupMapper = groupMapper;
+        return this;
+    }
+    
+    /**
+     * Runs the password and the groups query concurrently on two connections if an 
+     * identity is loaded, e.g. to fill the cache. Reduces the latency but doubles
+     * the used connections.
+     * 
+     * @param queryExecutor the {@link Executor} for the groups query, <code>null</code> to run the queries one after the other
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withConcurrentQueries(Executor queryExecutor) {
+        this.queryExecutor = queryExecutor;
+        return this;
+    }
+    
+    /**
+     * Uses a few dedicated connections with cached statements instead of borrowing a 
+     * connection from the data source for each request. Limits the connections used for 
+     * the authentication, so a login storm can't starve the application.
+     * 
+     * @param bulkhead the {@link Bulkhead} configuration, <code>null</code> to disable it
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+        return this;
+    }
+    
+    /**
+     * Adds read replicas which are used to load the identities, the data source of the
+     * builder is used as primary and fallback if no replica is available.
+     * <p>
+     * The recovery of a failed replica is passive only, there is no background health check. 
+     * After the backoff the next real request is sent to the replica as probe.
+     * </p>
+     * 
+     * @param replicas the {@link DataSource}s of the read replicas
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withReadReplicas(DataSource... replicas) {
+        this.readReplicas.addAll(Arrays.asList(replicas));
+        return this;
+    }
+    
+    /**
+     * The time a failed read replica is skipped, doubles for each further failure.
+     * After the backoff the next request is used as probe, see {@link #withReadReplicas(DataSource...)}.
+     * 
+     * @param backoff the initial backoff, <code>null</code> for the default of one second
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withReplicaBackoff(Duration backoff) {
+        this.replicaBackoff = backoff;
+        return this;
+    }
+    
+    /**
+     * Keeps all users and groups in memory and reloads them in the given interval, 
+     * the DB isn't accessed during the verify of a password. Useful for small to medium 
+     * user tables. The cache settings are ignored if enabled, as the store is a full cache.
+     * Can't be combined with {@link #withBulkhead(Bulkhead)}, {@link #withConcurrentQueries(Executor)} 
+     * and {@link #withOffHeapCache(int)}, which are used only by the lookups of single users.
+     * 
+     * @param reloadInterval the interval to reload the users, <code>null</code> to disable the in memory store
+     * @return this for chaining
+     * @see JdbcSnapshotIdentityStore
+     */
+    public IdentityStoreBuilder withInMemorySnapshot(Duration reloadInterval) {
+        this.snapshotReloadInterval = reloadInterval;
+        return this;
+    }
+    
+    /**
+     * Queries to load all users and groups for the in memory snapshot e.g.:
+     * <pre>
+     * select username, password from users
+     * select username, usergroup from groups
+     * </pre>
+     * 
+     * @param usersQuery query selecting the username and the password of all users
+     * @param groupsQuery query selecting the username and group of all groups
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withSnapshotQueries(String usersQuery, String groupsQuery) {
+        this.snapshotUsersQuery = usersQuery;
+        this.snapshotGroupsQuery = groupsQuery;
+        return this;
+    }
+    
+    /**
+     * @param fetchSize the JDBC fetch size to stream the users and groups into the snapshot, default 1000
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withSnapshotFetchSize(int fetchSize) {
+        this.snapshotFetchSize = fetchSize;
+        return this;
+    }
+    
+    /**
+     * Partitions the users across several databases, the data source of the builder is the
+     * first shard. Each shard gets its own store and cache using the configuration of this builder.
+     * Can't be combined with read replicas.
+     * 
+     * @param shards the {@link DataSource}s of the further shards
+     * @return this for chaining
+     * @see ShardedIdentityStore
+     */
+    public IdentityStoreBuilder withShards(DataSource... shards) {
+        this.additionalShards.addAll(Arrays.asList(shards));
+        return this;
+    }
+    
+    /**
+     * @param shardFunction the {@link ShardFunction} deciding which shard owns a user,
+     *        default is the {@link ConsistentHashShardFunction}
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withShardFunction(ShardFunction shardFunction) {
+        this.shardFunction = shardFunction;
+        return this;
+    }
+    
+    /**
+     * @param executor the {@link Executor} to load the users of each shard in parallel for
+     *        {@link ShardedIdentityStore#loadAll(java.util.Collection)}, <code>null</code> to load them one after the other
+     * @return this for chaining
+     */
+    public IdentityStoreBuilder withShardExecutor(Executor executor) {
+        this.shardExecutor = executor;
+        return this;
+    }
+    
     /**
      * Builds the {@link IdentityStore}
      * 
      * @return {@link IdentityStore} with the selected config
      */
     public IdentityStore build() {
-        IdentityStore result = new JdbcIdentityStore(dataSource, 
-                passwordHasher == null ? new BCryptPbkdf2PasswordHash() : passwordHasher,
-                passwordQuery, groupsQuery, groupPrefix);
+        final PasswordHasher hasher = passwordHasher == null ? new BCryptPbkdf2PasswordHash() : passwordHasher;
+        if (groupMapper != null && groupPrefix != null) {
+            throw new IllegalStateException("Group prefix can't be combined with a group mapper, use GroupMapper.Builder#prefix.");
+        }
+        final GroupMapper mapper = groupMapper == null ? GroupMapper.prefix(groupPrefix) : groupMapper;
+        if (!additionalShards.isEmpty() && !readReplicas.isEmpty()) {
+            throw new IllegalStateException("Read replicas can't be combined with shards.");
+        }
+        if (hotUsersFile != null && (cacheDuration == null || snapshotReloadInterval != null)) {
+            throw new IllegalStateException("Hot users require the cache and can't be combined with the in memory snapshot.");
+        }
+        if (snapshotReloadInterval != null && (bulkhead != null || queryExecutor != null || offHeapCacheSize > 0)) {
+            throw new IllegalStateException("The in memory snapshot can't be combined with a bulkhead, concurrent queries or the off heap cache.");
+        }
+        if (cacheDuration != null && offHeapCacheSize > 0 && cachePassword) {
+            throw new IllegalStateException("The clear text password can't be cached off heap.");
+        }
+
+        final List<IdentityStore> stores = new ArrayList<>();
+        final List<CachedIdentityStore> caches = new ArrayList<>();
+        try {
+            final IdentityStore result;
+            stores.add(build(dataSource, readReplicas, hasher, mapper, caches));
+            for (DataSource shard : additionalShards) {
+                stores.add(build(shard, readReplicas, hasher, mapper, caches));
+            }
+            if (additionalShards.isEmpty()) {
+                result = stores.get(0);
+            } else {
+                result = new ShardedIdentityStore(stores,
+                        shardFunction == null ? new ConsistentHashShardFunction(stores.size()) : shardFunction,
+                        shardExecutor);
+            }
+
+            // created last, the caches close it with the store
+            if (hotUsersFile != null) {
+                final HotUsers hotUsers = new HotUsers(hotUsersFile, hotUsersTop, hotUsersWriteInterval);
+                for (CachedIdentityStore cache : caches) cache.setHotUsers(hotUsers);
+                hotUsers.warmUp(result, HotUsers.DEFAULT_WARM_UP_PARALLELISM);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            for (IdentityStore store : stores) {
+                try {
+                    store.close();
+                } catch (RuntimeException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private IdentityStore build(DataSource ds, List<DataSource> replicas, PasswordHasher hasher, GroupMapper mapper,
+            List<CachedIdentityStore> caches) {
+        if (snapshotReloadInterval != null) {
+            return new JdbcSnapshotIdentityStore(ds, replicas, replicaBackoff, hasher,
+                    snapshotUsersQuery, snapshotGroupsQuery, snapshotFetchSize, mapper, snapshotReloadInterval);
+        }
+
+        IdentityStore result = new JdbcIdentityStore(ds, replicas, replicaBackoff,
+                hasher, passwordQuery, groupsQuery, mapper, queryExecutor, bulkhead);
         
         // wrap the JDBC store if the cache is enabled
-        if (cacheDuration != null) {
-            result = new CachedIdentityStore(result, cacheDuration, cachePassword);
+        CachedIdentityStore cached = null;
+        if (cacheDuration != null && offHeapCacheSize > 0) {
+            cached = CachedIdentityStore.offHeap(result, cacheDuration, offHeapCacheSize);
+        } else if (cacheDuration != null) {
+            cached = new CachedIdentityStore(result, cacheDuration, cachePassword);
+        }
+        if (cached != null) {
+            caches.add(cached);
+            result = cached;
         }
 
         return result;
@@ -1,6 +1,7 @@
 package org.sterl.identitystore.cache;
 
 import java.time.Duration;
+import java.util.HashSet;
 
 import org.sterl.hash.PasswordHasher;
 import org.sterl.identitystore.api.Identity;
@@ -42,7 +43,8 @@ class CachedIdentity {
     VerificationResult verify(String password, PasswordHasher hasher) {
         VerificationResult result;
         if (rawPassword != null && rawPassword.equals(password)) {
-            result = new VerificationResult(Status.VALID, identity.getGroups());
+            result = new VerificationResult(Status.VALID, 
+                    identity.getGroups() == null ? new HashSet<>() : new HashSet<>(identity.getGroups()));
         } else {
             result = identity.verify(password, hasher);
         }
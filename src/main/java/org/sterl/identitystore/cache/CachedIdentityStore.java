@@ -1,17 +1,17 @@
 package org.sterl.identitystore.cache;
 
 import java.time.Duration;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.sterl.hash.PasswordHasher;
 import org.sterl.identitystore.api.Identity;
 import org.sterl.identitystore.api.IdentityStore;
 import org.sterl.identitystore.api.VerificationResult;
 import org.sterl.identitystore.api.VerificationResult.Status;
+import org.sterl.identitystore.jfr.IdentityEvent;
 
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 /**
  * Provides the ability to cache any other identity store for two main purposes:
@@ -22,7 +22,6 @@ import lombok.RequiredArgsConstructor;
  * 
  * @author sterlp
  */
-@RequiredArgsConstructor
 public class CachedIdentityStore implements IdentityStore {
     @NonNull
     private final IdentityStore wrapped;
@@ -36,27 +35,92 @@ public class CachedIdentityStore implements IdentityStore {
     /** Allows to cache the real password to increase the performance using cached entries */
     @Getter
     private final boolean cacheRealPassword;
-    private final ConcurrentHashMap<String, CachedIdentity> cache = new ConcurrentHashMap<>();
+    private final IdentityCache cache;
+    /** Optional tracker of the most frequently verified users, to warm up the cache after a restart; closed with this store */
+    @Getter @Setter
+    private HotUsers hotUsers;
+
+    /**
+     * Creates a cache which keeps the identities on the heap.
+     * 
+     * @param wrapped the {@link IdentityStore} to cache
+     * @param cacheDuration the time after which the identity should be reloaded
+     * @param cacheRealPassword <code>true</code> to cache the clear text password after a valid check
+     */
+    public CachedIdentityStore(@NonNull IdentityStore wrapped, @NonNull Duration cacheDuration,
+            boolean cacheRealPassword) {
+        this(wrapped, cacheDuration, cacheRealPassword, new MapIdentityCache());
+    }
+
+    private CachedIdentityStore(IdentityStore wrapped, Duration cacheDuration,
+            boolean cacheRealPassword, IdentityCache cache) {
+        this.wrapped = wrapped;
+        this.cacheDuration = cacheDuration;
+        this.cacheRealPassword = cacheRealPassword;
+        this.cache = cache;
+    }
+
+    /**
+     * Creates a cache which keeps the identities outside of the java heap, to reduce the GC
+     * overhead for millions of cached identities. The clear text password is never cached,
+     * as the identity is created on each access.
+     * 
+     * @param wrapped the {@link IdentityStore} to cache
+     * @param cacheDuration the time after which the identity should be reloaded
+     * @param expectedSize the expected amount of cached identities
+     * @return the {@link CachedIdentityStore} using off heap memory
+     */
+    public static CachedIdentityStore offHeap(@NonNull IdentityStore wrapped, @NonNull Duration cacheDuration,
+            int expectedSize) {
+        return new CachedIdentityStore(wrapped, cacheDuration, false,
+                new OffHeapIdentityCache(expectedSize, OffHeapIdentityCache.DEFAULT_SLAB_SIZE));
+    }
+
+    /**
+     * @return the amount of cached identities
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
 
     @Override
     public VerificationResult verify(String username, String inputPassword) {
         CachedIdentity identity = loadWithFallbackToCache(username);
         VerificationResult result = identity.verify(inputPassword, wrapped.getPasswordHasher());
+        boolean cacheHit = identity.isCacheHit();
 
-        // double check the result in case it fails
-        if (result.getStatus() != Status.VALID) {
-            identity = loadAndCache(username);
-            result = identity.verify(inputPassword, wrapped.getPasswordHasher());
+        // double check a failed cache hit, the password could have been changed. The wrapped
+        // store loads the groups only for a valid password, the identity is reloaded only then.
+        if (result.getStatus() != Status.VALID && cacheHit && identity.getSuppressedError() == null) {
+            result = wrapped.verify(username, inputPassword);
+            cacheHit = false;
+            if (result.getStatus() == Status.VALID) {
+                identity = loadAndCache(username);
+                result = identity.verify(inputPassword, wrapped.getPasswordHasher());
+            }
         }
-        // if password cache is enabled, cache the password too
-        if (cacheRealPassword && result.getStatus() == Status.VALID) {
-            identity.setRawPassword(inputPassword);
+        if (result.getStatus() == Status.VALID) {
+            // if password cache is enabled, cache the password too
+            if (cacheRealPassword) identity.setRawPassword(inputPassword);
+            if (hotUsers != null) hotUsers.record(username);
         }
-        result.setCacheHit(identity.isCacheHit());
+        result.setCacheHit(cacheHit);
         result.setSuppressedError(identity.getSuppressedError());
         return result;
     }
 
+    /**
+     * Closes the {@link HotUsers}, which writes the current top users, and the wrapped store.
+     */
+    @Override
+    public void close() {
+        try {
+            if (hotUsers != null) hotUsers.close();
+        } finally {
+            wrapped.close();
+        }
+    }
+
     @Override
     public PasswordHasher getPasswordHasher() {
         return wrapped.getPasswordHasher();
@@ -68,11 +132,13 @@ public class CachedIdentityStore implements IdentityStore {
     }
     
     CachedIdentity loadWithFallbackToCache(String username) {
+        final IdentityEvent event = IdentityEvent.cache(username);
         final CachedIdentity cachedIdentity = cache.get(username);
         CachedIdentity result;
         if (cachedIdentity == null || cachedIdentity.isTimeout(cacheDuration)) {
             try {
                 result = loadAndCache(username);
+                event.commit("MISS");
 
                 if (cachedIdentity != null && cachedIdentity.getRawPassword() != null
                         && cachedIdentity.getIdentity().getHashedPassword().equals(result.getIdentity().getHashedPassword())) {
@@ -80,16 +146,20 @@ public class CachedIdentityStore implements IdentityStore {
                 }
 
             } catch (Exception e) {
-                if (cachedIdentity == null) throw e;
-                else {
+                if (cachedIdentity == null) {
+                    event.commit("ERROR");
+                    throw e;
+                } else {
                     result = cachedIdentity;
                     result.setCacheHit(true);
                     result.setSuppressedError(e);
+                    event.commit("FALLBACK");
                 }
             }
         } else {
             result = cachedIdentity;
             result.setCacheHit(true);
+            event.commit("HIT");
         }
         return result;
     }
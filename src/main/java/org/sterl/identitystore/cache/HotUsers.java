@@ -0,0 +1,233 @@
+package org.sterl.identitystore.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sterl.identitystore.api.Identity;
+import org.sterl.identitystore.api.IdentityStore;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Tracks the most frequently verified users and writes them periodically to a local file,
+ * which is used after a restart to warm up the cache. Only the user names are written,
+ * the warm up loads the identities without any credentials.
+ * <p>
+ * The users are counted in a {@link SpaceSavingSketch}, so the memory is bounded
+ * by the amount of top users, independent of the amount of users. The sketch is striped
+ * by the user name, concurrent logins of different users rarely wait for each other.
+ * </p>
+ *
+ * @author sterlp
+ */
+public class HotUsers implements Closeable {
+    public static final int DEFAULT_TOP_USERS = 1_000;
+    public static final Duration DEFAULT_WRITE_INTERVAL = Duration.ofMinutes(5);
+    public static final int DEFAULT_WARM_UP_PARALLELISM = 4;
+    /** amount of users loaded by one warm up task */
+    static final int WARM_UP_BATCH_SIZE = 50;
+    /** more counters than top users improve the accuracy of the top list */
+    private static final int COUNTERS_PER_USER = 4;
+    /** max amount of independently locked parts of the sketch */
+    static final int MAX_STRIPES = 16;
+
+    @Getter
+    private final Path file;
+    @Getter
+    private final int topUsers;
+    private final SpaceSavingSketch sketch;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    /** The error of the last write or warm up, <code>null</code> if the last write was successful */
+    @Getter
+    private volatile Exception lastError;
+
+    /**
+     * Creates the tracker with the defaults, writes every 5 minutes the top 1.000 users.
+     *
+     * @param file the file to store the hot users
+     */
+    public HotUsers(@NonNull Path file) {
+        this(file, DEFAULT_TOP_USERS, DEFAULT_WRITE_INTERVAL);
+    }
+
+    /**
+     * @param file the file to store the hot users
+     * @param topUsers the max amount of users to write
+     * @param writeInterval the interval to write the file, <code>null</code> to write it only on {@link #close()}
+     */
+    public HotUsers(@NonNull Path file, int topUsers, Duration writeInterval) {
+        if (topUsers < 1) throw new IllegalArgumentException("Top users must be at least 1, found " + topUsers);
+        this.file = file;
+        this.topUsers = topUsers;
+        // at most one stripe per top user, to keep enough counters in each stripe
+        this.sketch = new SpaceSavingSketch(topUsers * COUNTERS_PER_USER, Math.min(MAX_STRIPES, topUsers));
+
+        if (writeInterval != null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "identity-hot-users-write");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::writeQuietly,
+                    writeInterval.toMillis(), writeInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Counts a verification of the given user.
+     *
+     * @param username the verified user
+     */
+    public void record(String username) {
+        if (username != null) sketch.add(username);
+    }
+
+    /**
+     * @return the currently most frequently verified users, most frequent first
+     */
+    public List<String> getCurrentTopUsers() {
+        return sketch.top(topUsers);
+    }
+
+    /**
+     * Writes the current top users to the file, replacing it atomically if supported.
+     *
+     * @throws IOException if the file couldn't be written
+     */
+    public void write() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        for (String username : getCurrentTopUsers()) {
+            // a line break would split the name
+            if (username.indexOf('\n') < 0 && username.indexOf('\r') < 0) lines.add(username);
+        }
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        final Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return the users of the file, an empty list if the file doesn't exist
+     * @throws IOException if the file couldn't be read
+     */
+    public List<String> read() throws IOException {
+        if (!Files.isRegularFile(file)) return Collections.emptyList();
+        final List<String> result = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) result.add(line);
+            if (result.size() == topUsers) break;
+        }
+        return result;
+    }
+
+    /**
+     * Loads the users of the file into the cache of the given store, in batches on the given
+     * amount of threads. Waits until all users are loaded, a failed load is skipped.
+     * <p>
+     * Each found user is counted by its rank in the file, the first with the amount of users in
+     * the file down to 1 for the last. So the next write keeps the former top users, until
+     * they are outnumbered by the users verified since.
+     * </p>
+     *
+     * @param store the {@link IdentityStore} to warm up, should be or contain a {@link CachedIdentityStore}
+     * @param parallelism the amount of threads used to load the users
+     * @return the amount of found and loaded users
+     */
+    public int warmUp(@NonNull IdentityStore store, int parallelism) {
+        final List<String> usernames;
+        try {
+            usernames = read();
+        } catch (IOException e) {
+            lastError = e;
+            return 0;
+        }
+        if (usernames.isEmpty()) return 0;
+
+        final AtomicInteger result = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            final Thread t = new Thread(r, "identity-hot-users-warm-up");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<Future<?>> batches = new ArrayList<>();
+            for (int i = 0; i < usernames.size(); i += WARM_UP_BATCH_SIZE) {
+                final int first = i;
+                final int end = Math.min(i + WARM_UP_BATCH_SIZE, usernames.size());
+                batches.add(executor.submit(() -> {
+                    for (int rank = first; rank < end; rank++) {
+                        final String username = usernames.get(rank);
+                        try {
+                            if (store.load(username) != Identity.NOT_FOUND) {
+                                sketch.add(username, usernames.size() - rank);
+                                result.incrementAndGet();
+                            }
+                        } catch (RuntimeException e) {
+                            lastError = e;
+                        }
+                    }
+                }));
+            }
+            for (Future<?> batch : batches) batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            lastError = e;
+        } finally {
+            executor.shutdownNow();
+        }
+        return result.get();
+    }
+
+    /**
+     * Stops the scheduled write and writes the current top users a last time,
+     * any further call does nothing.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        if (scheduler != null) scheduler.shutdownNow();
+        writeQuietly();
+    }
+
+    private void writeQuietly() {
+        // keep the last file until we know better
+        if (sketch.size() == 0) return;
+        try {
+            write();
+            lastError = null;
+        } catch (IOException | RuntimeException e) {
+            lastError = e;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.sterl.identitystore.cache;
+
+/**
+ * Storage of the {@link CachedIdentity} used by the {@link CachedIdentityStore}.
+ * 
+ * @author sterlp
+ */
+interface IdentityCache {
+    /**
+     * @param username the user name
+     * @return the cached identity, <code>null</code> if not cached
+     */
+    CachedIdentity get(String username);
+
+    /**
+     * Adds or replaces the cached identity of the given user.
+     */
+    void put(String username, CachedIdentity identity);
+
+    /**
+     * @return the amount of cached identities
+     */
+    int size();
+}
@@ -0,0 +1,28 @@
+package org.sterl.identitystore.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default {@link IdentityCache} which keeps the {@link CachedIdentity} objects in a map,
+ * supports to keep the raw password.
+ * 
+ * @author sterlp
+ */
+class MapIdentityCache implements IdentityCache {
+    private final ConcurrentHashMap<String, CachedIdentity> cache = new ConcurrentHashMap<>();
+
+    @Override
+    public CachedIdentity get(String username) {
+        return cache.get(username);
+    }
+
+    @Override
+    public void put(String username, CachedIdentity identity) {
+        cache.put(username, identity);
+    }
+
+    @Override
+    public int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,307 @@
+package org.sterl.identitystore.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.sterl.identitystore.api.Identity;
+
+/**
+ * {@link IdentityCache} which stores the identities in direct {@link ByteBuffer} slabs
+ * outside of the java heap, to keep millions of cached identities out of the GC.
+ * <p>
+ * Each identity is stored as one record in a slab:
+ * <pre>
+ * long cachedTime | short length | username | short length | hashed password | short count | int group id...
+ * </pre>
+ * The group names are replaced by ids of a small on heap dictionary. An open addressing index
+ * points to the records, updated records are appended and the slabs are compacted if more than
+ * half of the used bytes are outdated records. The {@link CachedIdentity} is only created on
+ * access, as such the raw password can't be cached.
+ * </p>
+ *
+ * @author sterlp
+ */
+class OffHeapIdentityCache implements IdentityCache {
+    static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+    private static final int NULL_LENGTH = -1;
+    private static final int HEADER_SIZE = 8 + 2 + 2 + 2;
+
+    private final int slabSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    private int writeOffset;
+    /** slab index + 1 in the upper and offset in the lower 32 bits, 0 for an empty slot */
+    private long[] addresses;
+    private int[] hashes;
+    private int size;
+    private long usedBytes;
+    private long outdatedBytes;
+
+    private final Map<String, Integer> groupIds = new HashMap<>();
+    private String[] groupNames = new String[16];
+
+    OffHeapIdentityCache() {
+        this(1024, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param expectedSize the expected amount of identities, to avoid resizing of the index
+     * @param slabSize the size of each direct {@link ByteBuffer}
+     */
+    OffHeapIdentityCache(int expectedSize, int slabSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) capacity <<= 1;
+        this.addresses = new long[capacity];
+        this.hashes = new int[capacity];
+        this.slabSize = slabSize;
+    }
+
+    @Override
+    public CachedIdentity get(String username) {
+        final byte[] key = username.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            final int slot = findSlot(hash(username), key);
+            return slot < 0 ? null : read(addresses[slot]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String username, CachedIdentity identity) {
+        final byte[] key = username.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(username);
+        lock.writeLock().lock();
+        try {
+            final byte[] record = toRecord(key, identity);
+            int slot = findSlot(hash, key);
+            if (slot >= 0) {
+                outdatedBytes += recordLength(addresses[slot]);
+            } else {
+                slot = -slot - 1;
+                hashes[slot] = hash;
+                ++size;
+            }
+            addresses[slot] = append(record);
+            usedBytes += record.length;
+
+            if (size * 2 > addresses.length) resize();
+            if (outdatedBytes > slabSize && outdatedBytes * 2 > usedBytes) compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the bytes allocated off heap by the slabs
+     */
+    long getOffHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) slabs.size() * slabSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the bytes used by records, including outdated records
+     */
+    long getUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int hash(String username) {
+        final int h = username.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot of the key, or <code>-(insert slot) - 1</code> if not found
+     */
+    private int findSlot(int hash, byte[] key) {
+        final int mask = addresses.length - 1;
+        int slot = hash & mask;
+        while (addresses[slot] != 0) {
+            if (hashes[slot] == hash && keyEquals(addresses[slot], key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        final ByteBuffer slab = slab(address);
+        final int offset = offset(address) + 8;
+        if (slab.getShort(offset) != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(offset + 2 + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private CachedIdentity read(long address) {
+        final ByteBuffer record = slab(address).duplicate();
+        record.position(offset(address));
+        final long cachedTime = record.getLong();
+        final String username = readString(record);
+        final String hashedPassword = readString(record);
+        final int groupCount = record.getShort();
+        Set<String> groups = null;
+        if (groupCount != NULL_LENGTH) {
+            groups = new HashSet<>((int) (groupCount / 0.75f) + 1);
+            for (int i = 0; i < groupCount; i++) {
+                groups.add(groupNames[record.getInt()]);
+            }
+        }
+        return new CachedIdentity(new Identity(username, hashedPassword, groups), cachedTime);
+    }
+
+    private static String readString(ByteBuffer record) {
+        final int length = record.getShort();
+        if (length == NULL_LENGTH) return null;
+        final byte[] value = new byte[length];
+        record.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private byte[] toRecord(byte[] key, CachedIdentity cached) {
+        final Identity identity = cached.getIdentity();
+        final byte[] password = identity.getHashedPassword() == null ? null
+                : identity.getHashedPassword().getBytes(StandardCharsets.UTF_8);
+        final Set<String> groups = identity.getGroups();
+        final int length = HEADER_SIZE + key.length
+                + (password == null ? 0 : password.length)
+                + (groups == null ? 0 : groups.size() * 4);
+        if (length > slabSize) {
+            throw new IllegalArgumentException("Identity " + identity.getUsername()
+                + " needs " + length + " bytes, which exceeds the slab size of " + slabSize);
+        }
+        if (key.length > Short.MAX_VALUE
+                || (password != null && password.length > Short.MAX_VALUE)
+                || (groups != null && groups.size() > Short.MAX_VALUE)) {
+            throw new IllegalArgumentException("Identity " + identity.getUsername() + " is too large.");
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        record.putLong(cached.getCachedTime());
+        record.putShort((short) key.length).put(key);
+        if (password == null) {
+            record.putShort((short) NULL_LENGTH);
+        } else {
+            record.putShort((short) password.length).put(password);
+        }
+        if (groups == null) {
+            record.putShort((short) NULL_LENGTH);
+        } else {
+            record.putShort((short) groups.size());
+            for (String group : groups) record.putInt(groupId(group));
+        }
+        return record.array();
+    }
+
+    private int groupId(String group) {
+        Integer result = groupIds.get(group);
+        if (result == null) {
+            result = groupIds.size();
+            if (result == groupNames.length) groupNames = Arrays.copyOf(groupNames, result * 2);
+            groupNames[result] = group;
+            groupIds.put(group, result);
+        }
+        return result;
+    }
+
+    private long append(byte[] record) {
+        if (slabs.isEmpty() || writeOffset + record.length > slabSize) {
+            slabs.add(ByteBuffer.allocateDirect(slabSize));
+            writeOffset = 0;
+        }
+        final ByteBuffer slab = slabs.get(slabs.size() - 1);
+        final long address = ((long) slabs.size() << 32) | writeOffset;
+        for (int i = 0; i < record.length; i++) {
+            slab.put(writeOffset + i, record[i]);
+        }
+        writeOffset += record.length;
+        return address;
+    }
+
+    private int recordLength(long address) {
+        return recordLength(slab(address), offset(address));
+    }
+
+    private void resize() {
+        final long[] oldAddresses = addresses;
+        final int[] oldHashes = hashes;
+        addresses = new long[oldAddresses.length * 2];
+        hashes = new int[oldHashes.length * 2];
+        final int mask = addresses.length - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] == 0) continue;
+            int slot = oldHashes[i] & mask;
+            while (addresses[slot] != 0) slot = (slot + 1) & mask;
+            addresses[slot] = oldAddresses[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    /**
+     * Copies all current records into new slabs, dropping the outdated ones.
+     */
+    private void compact() {
+        final List<ByteBuffer> oldSlabs = slabs;
+        slabs = new ArrayList<>();
+        writeOffset = 0;
+        usedBytes = 0;
+        outdatedBytes = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] == 0) continue;
+            final ByteBuffer oldSlab = oldSlabs.get((int) (addresses[i] >>> 32) - 1);
+            final int offset = offset(addresses[i]);
+            final byte[] record = new byte[recordLength(oldSlab, offset)];
+            for (int b = 0; b < record.length; b++) record[b] = oldSlab.get(offset + b);
+            addresses[i] = append(record);
+            usedBytes += record.length;
+        }
+    }
+
+    private int recordLength(ByteBuffer slab, int start) {
+        int offset = start + 8;
+        offset += 2 + Math.max(0, slab.getShort(offset));
+        offset += 2 + Math.max(0, slab.getShort(offset));
+        offset += 2 + Math.max(0, slab.getShort(offset)) * 4;
+        return offset - start;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32) - 1);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
@@ -0,0 +1,164 @@
+package org.sterl.identitystore.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Space-Saving heavy hitters sketch, tracks the approximate most frequent items of an
+ * unbounded stream using a fixed amount of counters. If all counters are used, the item
+ * with the lowest count is replaced and the new item inherits its count as error.
+ * <p>
+ * Each item with a frequency above <code>total / capacity</code> is guaranteed to be tracked.
+ * </p>
+ * <p>
+ * The counters can be split into stripes by the hash of the item, each stripe is an independent
+ * sketch of its part of the items with its own lock. Concurrent adds of different items
+ * rarely wait for each other and the guarantee holds for the total of each stripe.
+ * </p>
+ *
+ * @author sterlp
+ */
+class SpaceSavingSketch {
+    private static final Comparator<Counter> BY_COUNT = Comparator
+            .comparingLong((Counter c) -> c.count)
+            .thenComparing(c -> c.item);
+
+    private final Stripe[] stripes;
+
+    SpaceSavingSketch(int capacity) {
+        this(capacity, 1);
+    }
+
+    /**
+     * @param capacity the total amount of counters
+     * @param stripes the amount of stripes, rounded up to a power of two and at most the capacity
+     */
+    SpaceSavingSketch(int capacity, int stripes) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1, found " + capacity);
+        if (stripes < 1) throw new IllegalArgumentException("Stripes must be at least 1, found " + stripes);
+        int count = 1;
+        while (count < stripes && count * 2 <= capacity) count *= 2;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe((capacity + count - 1) / count);
+        }
+    }
+
+    /**
+     * Counts one occurrence of the given item.
+     */
+    void add(String item) {
+        add(item, 1);
+    }
+
+    /**
+     * Counts the given amount of occurrences of the item.
+     */
+    void add(String item, long count) {
+        stripe(item).add(item, count);
+    }
+
+    /**
+     * @param n the max amount of items to return
+     * @return the most frequent items, most frequent first
+     */
+    List<String> top(int n) {
+        final List<Counter> counters = new ArrayList<>();
+        for (Stripe s : stripes) s.top(n, counters);
+        // a single stripe returns them already ordered
+        if (stripes.length > 1) counters.sort(BY_COUNT.reversed());
+
+        final List<String> result = new ArrayList<>(Math.min(n, counters.size()));
+        for (int i = 0; i < counters.size() && result.size() < n; i++) {
+            result.add(counters.get(i).item);
+        }
+        return result;
+    }
+
+    /**
+     * @return the estimated count of the item, which could be overestimated by the error; 0 if not tracked
+     */
+    long count(String item) {
+        return stripe(item).count(item);
+    }
+
+    int size() {
+        int result = 0;
+        for (Stripe s : stripes) result += s.size();
+        return result;
+    }
+
+    int getStripes() {
+        return stripes.length;
+    }
+
+    Stripe stripe(String item) {
+        final int h = item.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    static class Stripe {
+        private final int capacity;
+        private final Map<String, Counter> counters;
+        /** all counters ordered by count, the first one is replaced next */
+        private final TreeSet<Counter> ordered = new TreeSet<>(BY_COUNT);
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.counters = new HashMap<>(capacity * 4 / 3 + 1);
+        }
+
+        synchronized void add(String item, long count) {
+            Counter counter = counters.get(item);
+            if (counter == null) {
+                if (counters.size() < capacity) {
+                    counter = new Counter(item, 0);
+                } else {
+                    final Counter min = ordered.pollFirst();
+                    counters.remove(min.item);
+                    counter = new Counter(item, min.count);
+                }
+                counters.put(item, counter);
+            } else {
+                ordered.remove(counter);
+            }
+            counter.count += count;
+            ordered.add(counter);
+        }
+
+        /**
+         * Adds a copy of the n most frequent counters to the given list, most frequent first.
+         */
+        synchronized void top(int n, List<Counter> result) {
+            final Iterator<Counter> i = ordered.descendingIterator();
+            for (int added = 0; i.hasNext() && added < n; ++added) {
+                final Counter c = i.next();
+                result.add(new Counter(c.item, c.count));
+            }
+        }
+
+        synchronized long count(String item) {
+            final Counter counter = counters.get(item);
+            return counter == null ? 0 : counter.count;
+        }
+
+        synchronized int size() {
+            return counters.size();
+        }
+    }
+
+    private static class Counter {
+        private final String item;
+        private long count;
+
+        Counter(String item, long count) {
+            this.item = item;
+            this.count = count;
+        }
+    }
+}
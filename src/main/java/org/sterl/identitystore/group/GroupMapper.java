@@ -0,0 +1,230 @@
+package org.sterl.identitystore.group;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import lombok.Getter;
+
+/**
+ * Maps the groups loaded from the store to the groups used by the application.
+ * The steps are always applied in the following order:
+ * <ol>
+ *  <li>rename of the loaded groups</li>
+ *  <li>filter of the renamed groups</li>
+ *  <li>transitive expansion of the group hierarchy, e.g. admin implies user</li>
+ *  <li>prefix of all resulting groups</li>
+ * </ol>
+ * The mapper is immutable and compiled once, the result for each distinct set of
+ * input groups is memoized and shared as an unmodifiable {@link Set}. If the limit of
+ * memoized sets is reached, the least recently used one is dropped. A mapper without
+ * any step, like {@link #NONE}, returns the groups as they are and memoizes nothing.
+ *
+ * @author sterlp
+ */
+public final class GroupMapper {
+    /** Default amount of distinct group sets which are memoized */
+    public static final int DEFAULT_MAX_MEMOIZED = 10_000;
+    /** Mapper which keeps the groups as they are, without memoizing them */
+    public static final GroupMapper NONE = builder().build();
+
+    private final Map<String, String> renames;
+    private final Predicate<String> filter;
+    /** already transitive expanded hierarchy */
+    private final Map<String, Set<String>> implied;
+    @Getter
+    private final String prefix;
+    @Getter
+    private final int maxMemoized;
+    /** <code>true</code> if the groups are kept as they are */
+    private final boolean passThrough;
+    /** least recently used mapped groups, <code>null</code> for the pass through */
+    private final Map<Set<String>, Set<String>> memoized;
+
+    private GroupMapper(Builder builder) {
+        this.renames = new HashMap<>(builder.renames);
+        this.filter = builder.filter;
+        this.implied = compileHierarchy(builder.hierarchy);
+        this.prefix = builder.prefix == null || builder.prefix.isEmpty() ? null : builder.prefix;
+        this.maxMemoized = builder.maxMemoized;
+        this.passThrough = renames.isEmpty() && filter == null && implied.isEmpty() && prefix == null;
+        this.memoized = passThrough ? null : new LinkedHashMap<Set<String>, Set<String>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Set<String>, Set<String>> eldest) {
+                return size() > maxMemoized;
+            }
+        };
+    }
+
+    /**
+     * @return a new {@link Builder} to configure the {@link GroupMapper}
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a mapper which just adds the given prefix.
+     *
+     * @param prefix the prefix, <code>null</code> or empty for no prefix
+     * @return the {@link GroupMapper}
+     */
+    public static GroupMapper prefix(String prefix) {
+        return prefix == null || prefix.isEmpty() ? NONE : builder().prefix(prefix).build();
+    }
+
+    /**
+     * Maps the given groups, the result is shared with any other identity which has the same groups.
+     *
+     * @param groups the loaded groups, could be <code>null</code>
+     * @return the mapped unmodifiable groups, never <code>null</code>
+     */
+    public Set<String> map(Set<String> groups) {
+        if (groups == null || groups.isEmpty()) return Collections.emptySet();
+        if (passThrough) return Collections.unmodifiableSet(groups);
+
+        Set<String> result;
+        synchronized (memoized) {
+            result = memoized.get(groups);
+        }
+        if (result == null) {
+            final Set<String> key = Collections.unmodifiableSet(new HashSet<>(groups));
+            result = doMap(key);
+            synchronized (memoized) {
+                final Set<String> existing = memoized.putIfAbsent(key, result);
+                if (existing != null) result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the amount of currently memoized group sets
+     */
+    public int getMemoizedCount() {
+        if (memoized == null) return 0;
+        synchronized (memoized) {
+            return memoized.size();
+        }
+    }
+
+    private Set<String> doMap(Set<String> groups) {
+        final Set<String> result = new HashSet<>();
+        for (String group : groups) {
+            final String renamed = renames.getOrDefault(group, group);
+            if (filter == null || filter.test(renamed)) {
+                result.add(renamed);
+                final Set<String> expanded = implied.get(renamed);
+                if (expanded != null) result.addAll(expanded);
+            }
+        }
+        if (prefix == null) return Collections.unmodifiableSet(result);
+
+        final Set<String> prefixed = new HashSet<>((int) (result.size() / 0.75f) + 1);
+        for (String group : result) prefixed.add(prefix + group);
+        return Collections.unmodifiableSet(prefixed);
+    }
+
+    private static Map<String, Set<String>> compileHierarchy(Map<String, Set<String>> hierarchy) {
+        final Map<String, Set<String>> result = new HashMap<>();
+        for (String group : hierarchy.keySet()) {
+            final Set<String> implied = new HashSet<>();
+            final Deque<String> open = new ArrayDeque<>(hierarchy.get(group));
+            while (!open.isEmpty()) {
+                final String next = open.pop();
+                if (implied.add(next) && hierarchy.containsKey(next)) {
+                    open.addAll(hierarchy.get(next));
+                }
+            }
+            implied.remove(group);
+            result.put(group, Collections.unmodifiableSet(implied));
+        }
+        return result;
+    }
+
+    /**
+     * Builder of the {@link GroupMapper}, the order of the calls doesn't matter.
+     */
+    public static final class Builder {
+        private final Map<String, String> renames = new HashMap<>();
+        private Predicate<String> filter;
+        private final Map<String, Set<String>> hierarchy = new HashMap<>();
+        private String prefix;
+        private int maxMemoized = DEFAULT_MAX_MEMOIZED;
+
+        private Builder() {}
+
+        /**
+         * Spring requires that all roles are prefixed with <b>ROLE_</b>, this allows
+         * to prefix the roles for spring. Applied as last step.
+         *
+         * @param prefix the prefix to add to any group, <code>null</code> to reset
+         * @return this for chaining
+         */
+        public Builder prefix(String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * Renames a group loaded from the store.
+         *
+         * @param from the name in the store
+         * @param to the name to use instead
+         * @return this for chaining
+         */
+        public Builder rename(String from, String to) {
+            renames.put(from, to);
+            return this;
+        }
+
+        /**
+         * Only the renamed groups matching the filter are kept, multiple filters are combined using <b>and</b>.
+         *
+         * @param filter the {@link Predicate} which has to match
+         * @return this for chaining
+         */
+        public Builder filter(Predicate<String> filter) {
+            this.filter = this.filter == null ? filter : this.filter.and(filter);
+            return this;
+        }
+
+        /**
+         * Adds a group hierarchy, which is expanded transitive, e.g.
+         * <pre>implies("admin", "user", "auditor")</pre>
+         *
+         * @param group the group which implies the other groups
+         * @param impliedGroups the groups which are implied
+         * @return this for chaining
+         */
+        public Builder implies(String group, String... impliedGroups) {
+            final Set<String> implied = hierarchy.computeIfAbsent(group, k -> new LinkedHashSet<>());
+            Collections.addAll(implied, impliedGroups);
+            return this;
+        }
+
+        /**
+         * @param maxMemoized the max amount of distinct group sets to memoize, default {@link GroupMapper#DEFAULT_MAX_MEMOIZED}
+         * @return this for chaining
+         */
+        public Builder maxMemoized(int maxMemoized) {
+            this.maxMemoized = maxMemoized;
+            return this;
+        }
+
+        /**
+         * @return the compiled immutable {@link GroupMapper}
+         */
+        public GroupMapper build() {
+            return new GroupMapper(this);
+        }
+    }
+}
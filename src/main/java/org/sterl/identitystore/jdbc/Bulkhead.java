@@ -0,0 +1,40 @@
+package org.sterl.identitystore.jdbc;
+
+import java.time.Duration;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * Configuration of the dedicated connections used by the identity store, so that
+ * a login storm can't take all connections of the application {@link javax.sql.DataSource}.
+ * 
+ * @author sterlp
+ */
+@Value
+public class Bulkhead {
+    public static final Duration DEFAULT_ACQUIRE_TIMEOUT = Duration.ofSeconds(5);
+
+    /** Max amount of connections used by the identity store, per DB */
+    private final int maxConnections;
+    /** Max time a request waits for a free connection */
+    @NonNull
+    private final Duration acquireTimeout;
+
+    /**
+     * @param maxConnections the max amount of connections the identity store should use
+     * @param acquireTimeout max time a request waits for a free connection
+     */
+    public Bulkhead(int maxConnections, @NonNull Duration acquireTimeout) {
+        if (maxConnections < 1) throw new IllegalArgumentException("At least one connection is required, found " + maxConnections);
+        this.maxConnections = maxConnections;
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    /**
+     * @param maxConnections the max amount of connections the identity store should use
+     */
+    public Bulkhead(int maxConnections) {
+        this(maxConnections, DEFAULT_ACQUIRE_TIMEOUT);
+    }
+}
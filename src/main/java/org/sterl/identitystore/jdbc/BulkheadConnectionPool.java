@@ -0,0 +1,183 @@
+package org.sterl.identitystore.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Small pool of dedicated long lived connections, used as bulkhead to limit the amount of
+ * connections the identity store takes from the application {@link DataSource}. The
+ * {@link java.sql.PreparedStatement}s are cached per connection.
+ * <p>
+ * Waiting requests are served in order and fail after the acquire timeout. A connection
+ * which was idle longer than the validation interval is validated before it is used, a connection
+ * which caused an {@link SQLException} is closed. The connections are switched to auto commit,
+ * a long lived transaction would hide any later change of a password or group.
+ * </p>
+ *
+ * @author sterlp
+ */
+class BulkheadConnectionPool implements AutoCloseable {
+    /** Idle connections are validated before use after this time */
+    static final long VALIDATION_INTERVAL_MILLIS = 5_000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final DataSource dataSource;
+    @Getter(AccessLevel.PACKAGE)
+    private final Bulkhead bulkhead;
+    private final Semaphore permits;
+    private final Deque<PooledSession> idle = new ArrayDeque<>();
+    private volatile boolean closed = false;
+
+    BulkheadConnectionPool(@NonNull DataSource dataSource, @NonNull Bulkhead bulkhead) {
+        this.dataSource = dataSource;
+        this.bulkhead = bulkhead;
+        this.permits = new Semaphore(bulkhead.getMaxConnections(), true);
+    }
+
+    /**
+     * Executes the callback with a pooled connection, waits for a free connection up to the acquire timeout.
+     *
+     * @throws BulkheadFullException if no connection was free in time
+     */
+    <T> T execute(SqlCallback<T> callback) throws SQLException {
+        return execute(callback, System.nanoTime() + bulkhead.getAcquireTimeout().toNanos());
+    }
+
+    /**
+     * Executes the callback with a pooled connection, waits for a free connection up to the given deadline.
+     *
+     * @param deadline the {@link System#nanoTime()} until a free connection is awaited, 
+     *        if passed only a free connection is taken without waiting
+     * @throws BulkheadFullException if no connection was free in time
+     */
+    <T> T execute(SqlCallback<T> callback, long deadline) throws SQLException {
+        acquire(deadline);
+        try {
+            final PooledSession session = borrow();
+            boolean healthy = false;
+            try {
+                final T result = callback.doInSession(session.session);
+                healthy = true;
+                return result;
+            } finally {
+                giveBack(session, healthy);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return the amount of currently idle connections
+     */
+    int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * @return the amount of connections currently in use
+     */
+    int getActiveCount() {
+        return bulkhead.getMaxConnections() - permits.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (idle) {
+            for (PooledSession session : idle) session.session.close();
+            idle.clear();
+        }
+    }
+
+    private void acquire(long deadline) throws SQLException {
+        if (closed) throw new SQLException("The identity store connection pool is closed.");
+        try {
+            final long wait = Math.max(0, deadline - System.nanoTime());
+            if (!permits.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                throw new BulkheadFullException("No identity store connection available after "
+                        + TimeUnit.NANOSECONDS.toMillis(wait) + "ms, " + getActiveCount() + " in use.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection.", e);
+        }
+    }
+
+    private PooledSession borrow() throws SQLException {
+        PooledSession result;
+        while ((result = pollIdle()) != null) {
+            if (System.currentTimeMillis() - result.lastUsed < VALIDATION_INTERVAL_MILLIS
+                    || isValid(result.session.getConnection())) {
+                return result;
+            }
+            result.session.close();
+        }
+        final Connection connection = dataSource.getConnection();
+        try {
+            if (!connection.getAutoCommit()) connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new PooledSession(new JdbcSession(connection, true));
+    }
+
+    private void giveBack(PooledSession session, boolean healthy) {
+        if (healthy && !closed) {
+            session.lastUsed = System.currentTimeMillis();
+            synchronized (idle) {
+                idle.push(session);
+            }
+        } else {
+            session.session.close();
+        }
+    }
+
+    private PooledSession pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Thrown if all dedicated connections are in use, doesn't indicate a DB problem.
+     */
+    static class BulkheadFullException extends SQLTransientConnectionException {
+        private static final long serialVersionUID = 1L;
+
+        BulkheadFullException(String message) {
+            super(message);
+        }
+    }
+
+    private static class PooledSession {
+        private final JdbcSession session;
+        private long lastUsed;
+
+        PooledSession(JdbcSession session) {
+            this.session = session;
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package org.sterl.identitystore.jdbc;
 
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.sql.DataSource;
 
@@ -8,6 +13,9 @@ import org.sterl.hash.PasswordHasher;
 import org.sterl.identitystore.api.Identity;
 import org.sterl.identitystore.api.IdentityStore;
 import org.sterl.identitystore.api.VerificationResult;
+import org.sterl.identitystore.api.VerificationResult.Status;
+import org.sterl.identitystore.group.GroupMapper;
+import org.sterl.identitystore.jfr.IdentityEvent;
 
 import lombok.Getter;
 import lombok.NonNull;
@@ -35,10 +43,10 @@ public class JdbcIdentityStore implements IdentityStore {
     private final JdbcIdentityStoreDao storeDao;
     
     /**
-     * Spring requires that all roles are prefixed with <b>ROLE_</b>, this allows
-     * to prefix the roles/ groups for spring.
+     * Maps the loaded groups e.g. adds the <b>ROLE_</b> prefix required by spring.
      */
-    private final String groupPrefix;
+    @NonNull
+    private final GroupMapper groupMapper;
     
     /**
      * Creates a new identity store using the default queries.
@@ -61,20 +69,74 @@ public class JdbcIdentityStore implements IdentityStore {
      */
     public JdbcIdentityStore(DataSource dataSource, PasswordHasher passwordHasher, 
             String passwordQuery, String groupsQuery, String groupPrefix) {
+        this(dataSource, Collections.emptyList(), null, passwordHasher, passwordQuery, groupsQuery,
+                GroupMapper.prefix(groupPrefix), null, null);
+    }
+
+    /**
+     * Creates a new identity store which reads from the given replicas and uses
+     * the primary {@link DataSource} as fallback.
+     * 
+     * @param dataSource the primary {@link DataSource} to access the DB
+     * @param readReplicas {@link DataSource}s of the read replicas, could be empty
+     * @param replicaBackoff time to skip a failed replica, <code>null</code> for the default of one second
+     * @param passwordHasher {@link PasswordHasher} to verify the password
+     * @param passwordQuery Query to load the user password form the JDBC store using the username.
+     * @param groupsQuery Query to load the user groups form the JDBC store using the username.
+     * @param groupMapper the {@link GroupMapper} applied to the loaded groups, <code>null</code> to keep them as they are.
+     * @param queryExecutor optional {@link Executor} to run the password and groups query of {@link #load(String)} 
+     *        concurrently on two connections, <code>null</code> to run them one after the other.
+     * @param bulkhead optional {@link Bulkhead} to use a few dedicated connections with cached statements, 
+     *        <code>null</code> to borrow a connection from the data source for each request.
+     */
+    public JdbcIdentityStore(DataSource dataSource, List<DataSource> readReplicas, Duration replicaBackoff,
+            PasswordHasher passwordHasher, String passwordQuery, String groupsQuery, GroupMapper groupMapper,
+            Executor queryExecutor, Bulkhead bulkhead) {
         this.passwordHasher = passwordHasher;
-        this.storeDao = new JdbcIdentityStoreDao(dataSource, passwordQuery, groupsQuery);
-        this.groupPrefix = groupPrefix;
+        this.storeDao = new JdbcIdentityStoreDao(
+                new ReplicaDataSourceRouter(dataSource, readReplicas, replicaBackoff, bulkhead),
+                passwordQuery, groupsQuery, queryExecutor);
+        this.groupMapper = groupMapper == null ? GroupMapper.NONE : groupMapper;
     }
     
     /**
-     * {@inheritDoc}
+     * Closes the dedicated connections of the {@link Bulkhead}, if any.
+     */
+    @Override
+    public void close() {
+        storeDao.close();
+    }
+    
+    /**
+     * @return the prefix added to every group, could be <code>null</code>
+     * @deprecated use {@link #getGroupMapper()}
+     */
+    @Deprecated
+    public String getGroupPrefix() {
+        return groupMapper.getPrefix();
+    }
+    
+    /**
+     * Verifies the password first and loads the groups only for a valid password,
+     * to save the groups query for each failed login.
      */
     @Override
     public VerificationResult verify(String username, String inputPassword) {
-        VerificationResult result;
-        final Identity identity = load(username);
-        result = identity.verify(inputPassword, passwordHasher);
-        return result;
+        try {
+            final String hashedPassword = storeDao.loadPassword(username);
+            VerificationResult result;
+            if (hashedPassword == null) {
+                result = VerificationResult.NOT_FOUND;
+            } else if (IdentityEvent.hash(username, () -> passwordHasher.matches(inputPassword, hashedPassword))) {
+                result = new VerificationResult(Status.VALID, 
+                        new HashSet<>(groupMapper.map(storeDao.loadGroups(username))));
+            } else {
+                result = VerificationResult.INVALID_PASSWORD;
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to load user informations for " + username, e);
+        }
     }
 
     /**
@@ -84,10 +146,9 @@ public class JdbcIdentityStore implements IdentityStore {
     public Identity load(String username) {
         try {
             final Identity result = storeDao.load(username);
-            if (groupPrefix != null && groupPrefix.length() > 0) {
-                result.prefixRole(groupPrefix);
-            }
-            return result;
+            if (result == Identity.NOT_FOUND) return result;
+            return new Identity(result.getUsername(), result.getHashedPassword(),
+                    groupMapper.map(result.getGroups()));
         } catch (SQLException e) {
             throw new RuntimeException("Failed to load user informations for " + username, e);
         }
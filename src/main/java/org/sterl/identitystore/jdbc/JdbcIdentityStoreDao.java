@@ -1,28 +1,31 @@
 package org.sterl.identitystore.jdbc;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashSet;
 import java.util.Set;
-
-import javax.sql.DataSource;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.sterl.identitystore.api.Identity;
+import org.sterl.identitystore.jfr.IdentityEvent;
 
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 
 /**
- * Loads identities with its roles from the DB.
+ * Loads identities with its roles from the DB, read replicas are preferred if configured.
  * 
  * @author sterlp
  */
 @AllArgsConstructor(access = AccessLevel.PACKAGE)
-class JdbcIdentityStoreDao {
+class JdbcIdentityStoreDao implements AutoCloseable {
     
-    private final DataSource dataSource;
+    private final ReplicaDataSourceRouter router;
     /**
      * Query to load the user password form the JDBC store e.g.:
      * <pre>select password from users where username = ?</pre>
@@ -33,6 +36,11 @@ class JdbcIdentityStoreDao {
      * <pre>select usergroup from groups where username = ?</pre>
      */
     private final String groupsQuery;
+    /**
+     * Optional {@link Executor} to run the groups query concurrently on a second
+     * connection, <code>null</code> runs both queries on one connection.
+     */
+    private final Executor queryExecutor;
 
     /**
      * Loads the {@link Identity} data using it's user name.
@@ -43,33 +51,142 @@ class JdbcIdentityStoreDao {
      * @throws IllegalStateException if the password isn't unique
      */
     Identity load(String username) throws SQLException {
+        if (queryExecutor == null) {
+            return router.read(session -> load(session, username));
+        }
+
+        final GroupsQuery userGroups = new GroupsQuery(username);
+        queryExecutor.execute(userGroups);
+        boolean found = false;
+        try {
+            final String userPassword = loadPassword(username);
+            found = userPassword != null;
+            return found ? new Identity(username, userPassword, userGroups.join()) : Identity.NOT_FOUND;
+        } finally {
+            // never leave a running query behind, it holds a connection
+            if (!found) userGroups.abort();
+        }
+    }
+
+    /**
+     * Loads only the hashed password of the given user.
+     * 
+     * @param username the name of the user
+     * @return the hashed password, <code>null</code> if the user wasn't found
+     * @throws SQLException if the configures queries are bad or DB connection interrupted
+     * @throws IllegalStateException if the password isn't unique
+     */
+    String loadPassword(String username) throws SQLException {
+        return router.read(session -> loadPassword(session, username));
+    }
+
+    /**
+     * Loads only the groups of the given user.
+     * 
+     * @param username the name of the user
+     * @return the groups of the user, never <code>null</code>
+     * @throws SQLException if the configures queries are bad or DB connection interrupted
+     */
+    Set<String> loadGroups(String username) throws SQLException {
+        return router.read(session -> executeQuery(session, groupsQuery, username));
+    }
+
+    @Override
+    public void close() {
+        router.close();
+    }
+
+    private Identity load(JdbcSession session, String username) throws SQLException {
         Identity result;
-        try (Connection connection = dataSource.getConnection()) {
-            final Set<String> userPassword = executeQuery(connection, passwordQuery, username);
-            if (userPassword.isEmpty()) {
-                result = Identity.NOT_FOUND;
-            } else if (userPassword.size() > 1) {
-                throw new IllegalStateException("Found " + userPassword.size() + " passwords for user " + username);
-            } else {
-                final Set<String> userGroups = executeQuery(connection, groupsQuery, username);
-                result = new Identity(username, userPassword.iterator().next(), userGroups);
-            }
+        final String userPassword = loadPassword(session, username);
+        if (userPassword == null) {
+            result = Identity.NOT_FOUND;
+        } else {
+            final Set<String> userGroups = executeQuery(session, groupsQuery, username);
+            result = new Identity(username, userPassword, userGroups);
         }
         return result;
     }
+
+    private String loadPassword(JdbcSession session, String username) throws SQLException {
+        final Set<String> userPassword = executeQuery(session, passwordQuery, username);
+        if (userPassword.isEmpty()) {
+            return null;
+        } else if (userPassword.size() > 1) {
+            throw new IllegalStateException("Found " + userPassword.size() + " passwords for user " + username);
+        }
+        return userPassword.iterator().next();
+    }
     
-    private Set<String> executeQuery(Connection connection, String query, String parameter) throws SQLException {
+    private Set<String> executeQuery(JdbcSession session, String query, String parameter) throws SQLException {
         Set<String> result = new HashSet<>();
 
-        try (PreparedStatement statement = connection.prepareStatement(query)) {
+        final IdentityEvent event = IdentityEvent.query(query, parameter);
+        String outcome = "ERROR";
+        final PreparedStatement statement = session.prepare(query);
+        try {
             statement.setString(1, parameter);
             try (ResultSet resultSet = statement.executeQuery()) {
                 while (resultSet.next()) {
                     result.add(resultSet.getString(1));
                 }
             }
+            outcome = result.isEmpty() ? "NOT_FOUND" : "FOUND";
+        } finally {
+            session.release(statement);
+            event.commit(outcome);
         }
 
         return result;
     }
+
+    /**
+     * Groups query which runs concurrently to the password query, it is either
+     * skipped if it didn't start yet or awaited if it was aborted.
+     */
+    private class GroupsQuery implements Runnable {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int ABORTED = 2;
+
+        private final String username;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final CompletableFuture<Set<String>> result = new CompletableFuture<>();
+
+        GroupsQuery(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(PENDING, RUNNING)) return;
+            try {
+                result.complete(loadGroups(username));
+            } catch (SQLException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        Set<String> join() throws SQLException {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+                throw e;
+            }
+        }
+
+        /**
+         * Skips the query if it didn't start yet, otherwise waits until it is done.
+         */
+        void abort() {
+            if (state.compareAndSet(PENDING, ABORTED)) return;
+            try {
+                result.join();
+            } catch (CompletionException | CancellationException e) {
+                // the result isn't needed anymore
+            }
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package org.sterl.identitystore.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * A borrowed {@link Connection} which optionally caches the {@link PreparedStatement}s,
+ * if the connection is kept open by the {@link BulkheadConnectionPool}.
+ *
+ * @author sterlp
+ */
+class JdbcSession {
+    @Getter(AccessLevel.PACKAGE)
+    private final Connection connection;
+    /** <code>null</code> if the statements should be closed after each use */
+    private final Map<String, PreparedStatement> statements;
+
+    JdbcSession(Connection connection, boolean cacheStatements) {
+        this.connection = connection;
+        this.statements = cacheStatements ? new HashMap<>() : null;
+    }
+
+    /**
+     * @param sql the SQL of the statement
+     * @return a new or the cached {@link PreparedStatement}, has to be given back using {@link #release(PreparedStatement)}
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        if (statements == null) return connection.prepareStatement(sql);
+
+        PreparedStatement result = statements.get(sql);
+        if (result == null) {
+            result = connection.prepareStatement(sql);
+            statements.put(sql, result);
+        }
+        return result;
+    }
+
+    /**
+     * Closes the statement if it isn't cached.
+     */
+    void release(PreparedStatement statement) throws SQLException {
+        if (statements == null) {
+            statement.close();
+        } else {
+            statement.clearParameters();
+        }
+    }
+
+    /**
+     * Closes all cached statements and the connection.
+     */
+    void close() {
+        if (statements != null) {
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // the connection is closed anyway
+                }
+            }
+            statements.clear();
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // nothing we could do
+        }
+    }
+}
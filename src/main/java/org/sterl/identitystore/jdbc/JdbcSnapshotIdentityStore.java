@@ -0,0 +1,268 @@
+package org.sterl.identitystore.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.sterl.hash.PasswordHasher;
+import org.sterl.identitystore.api.Identity;
+import org.sterl.identitystore.api.IdentityStore;
+import org.sterl.identitystore.api.VerificationResult;
+import org.sterl.identitystore.api.VerificationResult.Status;
+import org.sterl.identitystore.group.GroupMapper;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Keeps a full in memory copy of all users and groups, which is reloaded in the given interval.
+ * Suitable for stores which fit into the memory, as {@link #verify(String, String)} and
+ * {@link #load(String)} never access the DB.
+ * <p>
+ * Each reload builds a new immutable snapshot which replaces the old one at once. If a reload
+ * fails the last snapshot is kept, the store is marked as stale and the error is returned as
+ * suppressed error of each {@link VerificationResult} until the next reload succeeds.
+ * </p>
+ * Default queries are:
+ * <pre>
+ * select username, password from users
+ * select username, usergroup from groups
+ * </pre>
+ *
+ * @author sterlp
+ */
+public class JdbcSnapshotIdentityStore implements IdentityStore {
+    public static final String DEFAULT_USERS_QUERY = "select username, password from users";
+    public static final String DEFAULT_GROUPS_QUERY = "select username, usergroup from groups";
+    public static final int DEFAULT_FETCH_SIZE = 1_000;
+    private static final Logger LOG = Logger.getLogger(JdbcSnapshotIdentityStore.class.getName());
+
+    /** PasswordHasher used to verify the passwords */
+    @Getter @NonNull
+    private final PasswordHasher passwordHasher;
+    private final ReplicaDataSourceRouter router;
+    private final String usersQuery;
+    private final String groupsQuery;
+    private final int fetchSize;
+    @NonNull
+    private final GroupMapper groupMapper;
+    /** The interval in which the snapshot is reloaded */
+    @Getter
+    private final Duration reloadInterval;
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final ScheduledExecutorService scheduler;
+    /** The error of the last reload, <code>null</code> if it was successful */
+    @Getter
+    private volatile Exception lastError;
+
+    /**
+     * Creates the store using the default queries and loads the first snapshot.
+     *
+     * @param dataSource {@link DataSource} to access the DB
+     * @param passwordHasher {@link PasswordHasher} to verify the password
+     * @param reloadInterval the interval in which the snapshot is reloaded, <code>null</code> to disable it
+     */
+    public JdbcSnapshotIdentityStore(DataSource dataSource, PasswordHasher passwordHasher, Duration reloadInterval) {
+        this(dataSource, Collections.emptyList(), null, passwordHasher, DEFAULT_USERS_QUERY, DEFAULT_GROUPS_QUERY,
+                DEFAULT_FETCH_SIZE, null, reloadInterval);
+    }
+
+    /**
+     * Creates the store and loads the first snapshot.
+     *
+     * @param dataSource the primary {@link DataSource} to access the DB
+     * @param readReplicas {@link DataSource}s of the read replicas, could be empty
+     * @param replicaBackoff time to skip a failed replica, <code>null</code> for the default of one second
+     * @param passwordHasher {@link PasswordHasher} to verify the password
+     * @param usersQuery Query to load all users, the first column is the username the second the password.
+     * @param groupsQuery Query to load all groups, the first column is the username the second the group.
+     * @param fetchSize the JDBC fetch size used to stream the users and groups
+     * @param groupMapper the {@link GroupMapper} applied to the loaded groups, <code>null</code> to keep them as they are.
+     * @param reloadInterval the interval in which the snapshot is reloaded, <code>null</code> to disable it
+     * @throws IllegalStateException if the first snapshot could not be loaded
+     */
+    public JdbcSnapshotIdentityStore(DataSource dataSource, List<DataSource> readReplicas, Duration replicaBackoff,
+            PasswordHasher passwordHasher, String usersQuery, String groupsQuery, int fetchSize,
+            GroupMapper groupMapper, Duration reloadInterval) {
+        this.passwordHasher = passwordHasher;
+        this.router = new ReplicaDataSourceRouter(dataSource, readReplicas, replicaBackoff);
+        this.usersQuery = usersQuery;
+        this.groupsQuery = groupsQuery;
+        this.fetchSize = fetchSize;
+        this.groupMapper = groupMapper == null ? GroupMapper.NONE : groupMapper;
+        this.reloadInterval = reloadInterval;
+
+        if (!reload()) {
+            throw new IllegalStateException("Failed to load the initial identity snapshot.", lastError);
+        }
+        if (reloadInterval != null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "identity-snapshot-reload");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::reload,
+                    reloadInterval.toMillis(), reloadInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public VerificationResult verify(String username, String inputPassword) {
+        final VerificationResult result = load(username).verify(inputPassword, passwordHasher);
+        if (result.getStatus() == Status.VALID) {
+            result.setCacheHit(true);
+            result.setSuppressedError(lastError);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Identity load(String username) {
+        return snapshot.get().get(username);
+    }
+
+    /**
+     * Loads a new snapshot and replaces the current one, keeps the current one if the load fails.
+     * Catches any {@link Throwable}, as an error would stop the scheduled reload.
+     *
+     * @return <code>true</code> if the snapshot was replaced, <code>false</code> if the load failed
+     */
+    public boolean reload() {
+        try {
+            snapshot.set(router.read(this::loadSnapshot));
+            lastError = null;
+            return true;
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to reload the identity snapshot, keeping the last one.", e);
+            lastError = e;
+            return false;
+        } catch (Throwable e) {
+            LOG.log(Level.SEVERE, "Failed to reload the identity snapshot, keeping the last one.", e);
+            lastError = new IllegalStateException("Failed to reload the identity snapshot.", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the last reload failed and an old snapshot is used
+     */
+    public boolean isStale() {
+        return lastError != null;
+    }
+
+    /**
+     * @return the time in ms when the current snapshot was loaded
+     */
+    public long getSnapshotTime() {
+        return snapshot.get().loadTime;
+    }
+
+    /**
+     * @return the amount of identities in the current snapshot
+     */
+    public int size() {
+        return snapshot.get().usernames.length;
+    }
+
+    /**
+     * Stops the scheduled reload.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    private Snapshot loadSnapshot(JdbcSession session) throws SQLException {
+        final Connection connection = session.getConnection();
+        final long loadTime = System.currentTimeMillis();
+        final boolean autoCommit = connection.getAutoCommit();
+        // some drivers like postgres only use the fetch size without auto commit
+        if (autoCommit) connection.setAutoCommit(false);
+        try {
+            final Map<String, String> users = new HashMap<>();
+            try (PreparedStatement statement = connection.prepareStatement(usersQuery)) {
+                statement.setFetchSize(fetchSize);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        final String username = resultSet.getString(1);
+                        if (users.put(username, resultSet.getString(2)) != null) {
+                            throw new IllegalStateException("Found more than one password for user " + username);
+                        }
+                    }
+                }
+            }
+            final Map<String, Set<String>> groups = new HashMap<>();
+            try (PreparedStatement statement = connection.prepareStatement(groupsQuery)) {
+                statement.setFetchSize(fetchSize);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        groups.computeIfAbsent(resultSet.getString(1), k -> new HashSet<>())
+                              .add(resultSet.getString(2));
+                    }
+                }
+            }
+            if (autoCommit) connection.commit();
+            return new Snapshot(users, groups, groupMapper, loadTime);
+        } finally {
+            if (autoCommit) connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Immutable snapshot of all identities, stored in sorted arrays to avoid
+     * an {@link Identity} and a map entry per user.
+     */
+    static class Snapshot {
+        private final String[] usernames;
+        private final String[] passwords;
+        private final List<Set<String>> groups;
+        private final long loadTime;
+
+        Snapshot(Map<String, String> users, Map<String, Set<String>> userGroups,
+                GroupMapper groupMapper, long loadTime) {
+            this.usernames = users.keySet().toArray(new String[users.size()]);
+            Arrays.sort(usernames);
+            this.passwords = new String[usernames.length];
+            this.groups = new ArrayList<>(usernames.length);
+            for (int i = 0; i < usernames.length; i++) {
+                passwords[i] = users.get(usernames[i]);
+                // the group mapper shares the same group sets between the users
+                groups.add(groupMapper.map(userGroups.get(usernames[i])));
+            }
+            this.loadTime = loadTime;
+        }
+
+        Identity get(String username) {
+            if (username == null) return Identity.NOT_FOUND;
+            final int index = Arrays.binarySearch(usernames, username);
+            return index < 0 ? Identity.NOT_FOUND : new Identity(usernames[index], passwords[index], groups.get(index));
+        }
+    }
+}
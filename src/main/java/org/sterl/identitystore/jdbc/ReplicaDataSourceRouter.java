@@ -0,0 +1,206 @@
+package org.sterl.identitystore.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Routes read requests to a set of read replicas using the least outstanding requests
+ * and falls back to the primary {@link DataSource} if no replica is available.
+ * <p>
+ * A replica which fails with an {@link SQLException} is skipped for the backoff time,
+ * which doubles with each further failure up to {@link #MAX_BACKOFF}. After the backoff
+ * the next request is used as health check, a success marks the replica healthy again.
+ * </p>
+ * <p>
+ * With a {@link Bulkhead} one acquire timeout is shared by all nodes tried for a request,
+ * a busy replica doesn't extend the time a request waits for a connection.
+ * </p>
+ *
+ * @author sterlp
+ */
+class ReplicaDataSourceRouter implements AutoCloseable {
+    static final Duration DEFAULT_BACKOFF = Duration.ofSeconds(1);
+    static final Duration MAX_BACKOFF = Duration.ofMinutes(1);
+
+    @Getter(AccessLevel.PACKAGE)
+    private final Node primary;
+    @Getter(AccessLevel.PACKAGE)
+    private final List<Node> replicas;
+    private final long backoffMillis;
+    /** the time a request waits for a connection of any node, 0 without bulkhead */
+    private final long acquireTimeoutNanos;
+    private final Clock clock;
+    /** used to spread requests if replicas have the same amount of outstanding requests */
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    ReplicaDataSourceRouter(@NonNull DataSource primary, List<DataSource> replicas, Duration backoff) {
+        this(primary, replicas, backoff, null);
+    }
+
+    /**
+     * @param primary the primary {@link DataSource}, used as fallback
+     * @param replicas the read replicas, could be empty
+     * @param backoff the initial time a failed replica is skipped, <code>null</code> for default
+     * @param bulkhead optional {@link Bulkhead} to use dedicated connections for each node, <code>null</code> to borrow them each time
+     */
+    ReplicaDataSourceRouter(@NonNull DataSource primary, List<DataSource> replicas, Duration backoff, Bulkhead bulkhead) {
+        this(primary, replicas, backoff, bulkhead, Clock.systemUTC());
+    }
+
+    /**
+     * @param clock the {@link Clock} used for the backoff
+     */
+    ReplicaDataSourceRouter(@NonNull DataSource primary, List<DataSource> replicas, Duration backoff, Bulkhead bulkhead,
+            @NonNull Clock clock) {
+        this.clock = clock;
+        this.primary = new Node(primary, bulkhead);
+        final List<Node> nodes = new ArrayList<>();
+        if (replicas != null) {
+            for (DataSource ds : replicas) nodes.add(new Node(ds, bulkhead));
+        }
+        this.replicas = Collections.unmodifiableList(nodes);
+        this.backoffMillis = backoff == null ? DEFAULT_BACKOFF.toMillis() : backoff.toMillis();
+        this.acquireTimeoutNanos = bulkhead == null ? 0 : bulkhead.getAcquireTimeout().toNanos();
+    }
+
+    /**
+     * Executes the given read callback on the best healthy replica, tries the next replica
+     * if it fails and falls back to the primary if no replica could handle the request.
+     *
+     * @param callback the read only work to do
+     * @return the result of the callback
+     * @throws SQLException if the primary failed too
+     */
+    <T> T read(SqlCallback<T> callback) throws SQLException {
+        final long deadline = System.nanoTime() + acquireTimeoutNanos;
+        SQLException replicaError = null;
+        if (!replicas.isEmpty()) {
+            final boolean[] tried = new boolean[replicas.size()];
+            Node replica;
+            while ((replica = nextHealthyReplica(tried)) != null) {
+                try {
+                    final T result = replica.execute(callback, deadline);
+                    replica.markHealthy();
+                    return result;
+                } catch (SQLException e) {
+                    // a full bulkhead is just busy, not broken
+                    if (!(e instanceof BulkheadConnectionPool.BulkheadFullException)) replica.markFailed(backoffMillis, clock.millis());
+                    if (replicaError == null) replicaError = e;
+                    else if (replicaError != e) replicaError.addSuppressed(e);
+                }
+            }
+        }
+        try {
+            return primary.execute(callback, deadline);
+        } catch (SQLException e) {
+            if (replicaError != null) e.addSuppressed(replicaError);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the dedicated connections, if any.
+     */
+    @Override
+    public void close() {
+        primary.close();
+        for (Node replica : replicas) replica.close();
+    }
+
+    private Node nextHealthyReplica(boolean[] tried) {
+        final long now = clock.millis();
+        final int size = replicas.size();
+        final int start = Math.abs(nextReplica.getAndIncrement() % size);
+        int bestIndex = -1;
+        Node best = null;
+        for (int i = 0; i < size; i++) {
+            final int index = (start + i) % size;
+            final Node candidate = replicas.get(index);
+            if (!tried[index] && candidate.isAvailable(now)
+                    && (best == null || candidate.getOutstanding() < best.getOutstanding())) {
+                best = candidate;
+                bestIndex = index;
+            }
+        }
+        if (best != null) tried[bestIndex] = true;
+        return best;
+    }
+
+    /**
+     * A single DB node with its health and load state.
+     */
+    static class Node {
+        private final DataSource dataSource;
+        /** dedicated connections of this node, <code>null</code> to use the data source directly */
+        @Getter(AccessLevel.PACKAGE)
+        private final BulkheadConnectionPool pool;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private int failures = 0;
+        private volatile long skipUntil = 0;
+
+        Node(DataSource dataSource, Bulkhead bulkhead) {
+            this.dataSource = dataSource;
+            this.pool = bulkhead == null ? null : new BulkheadConnectionPool(dataSource, bulkhead);
+        }
+
+        /**
+         * @param deadline the {@link System#nanoTime()} until a bulkhead connection is awaited
+         */
+        <T> T execute(SqlCallback<T> callback, long deadline) throws SQLException {
+            outstanding.incrementAndGet();
+            try {
+                if (pool != null) return pool.execute(callback, deadline);
+                try (Connection connection = dataSource.getConnection()) {
+                    return callback.doInSession(new JdbcSession(connection, false));
+                }
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+
+        void close() {
+            if (pool != null) pool.close();
+        }
+
+        /**
+         * @return the amount of currently running requests on this node
+         */
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return <code>true</code> if the node isn't in a backoff after a failure
+         */
+        boolean isAvailable(long now) {
+            return skipUntil <= now;
+        }
+
+        synchronized void markFailed(long backoffMillis, long now) {
+            final long backoff = Math.min(backoffMillis << Math.min(failures, 16), MAX_BACKOFF.toMillis());
+            ++failures;
+            skipUntil = now + backoff;
+        }
+
+        void markHealthy() {
+            if (skipUntil != 0) {
+                synchronized (this) {
+                    failures = 0;
+                    skipUntil = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.sterl.identitystore.jdbc;
+
+import java.sql.SQLException;
+
+/**
+ * Work which should be done with a borrowed connection.
+ *
+ * @author sterlp
+ * @param <T> the result type
+ */
+interface SqlCallback<T> {
+    /**
+     * @param session the {@link JdbcSession} to use, will be closed by the caller
+     * @return the result of the work
+     * @throws SQLException if the DB access failed
+     */
+    T doInSession(JdbcSession session) throws SQLException;
+}
@@ -0,0 +1,83 @@
+package org.sterl.identitystore.jfr;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Timing of an identity store operation, recorded as JDK Flight Recorder event.
+ * <p>
+ * This is the Java 8 version which does nothing, the multi-release jar contains the
+ * Java 11 version using <code>jdk.jfr</code>. The events carry only the hash of the user name.
+ * </p>
+ * Usage:
+ * <pre>
+ * final IdentityEvent event = IdentityEvent.query(sql, username);
+ * final String password = loadPassword(username);
+ * event.commit(password == null ? "NOT_FOUND" : "FOUND");
+ * </pre>
+ *
+ * @author sterlp
+ */
+public class IdentityEvent {
+    private static final IdentityEvent DISABLED = new IdentityEvent();
+
+    private IdentityEvent() {
+    }
+
+    /**
+     * @return <code>true</code> if the events are recorded by the running JVM
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Starts the timing of a DB query.
+     *
+     * @param query the SQL of the query
+     * @param username the user name used as parameter
+     * @return the started event, never <code>null</code>
+     */
+    public static IdentityEvent query(String query, String username) {
+        return DISABLED;
+    }
+
+    /**
+     * Starts the timing of a cache lookup, including the reload of the identity.
+     *
+     * @param username the user name to look up
+     * @return the started event, never <code>null</code>
+     */
+    public static IdentityEvent cache(String username) {
+        return DISABLED;
+    }
+
+    /**
+     * Starts the timing of a password hash check.
+     *
+     * @param username the user name of the checked password
+     * @return the started event, never <code>null</code>
+     */
+    public static IdentityEvent hash(String username) {
+        return DISABLED;
+    }
+
+    /**
+     * Times the given password hash check, the outcome is <code>VALID</code> or <code>INVALID</code>.
+     *
+     * @param username the user name of the checked password
+     * @param check the password hash check
+     * @return the result of the check
+     */
+    public static boolean hash(String username, BooleanSupplier check) {
+        return check.getAsBoolean();
+    }
+
+    /**
+     * Ends the timing and records the event if it was slower than the configured threshold.
+     *
+     * @param outcome the outcome of the operation e.g. <code>HIT</code> or <code>VALID</code>
+     */
+    public void commit(String outcome) {
+        // nothing to record in Java 8
+    }
+}
@@ -0,0 +1,84 @@
+package org.sterl.identitystore.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+import lombok.Getter;
+
+/**
+ * {@link ShardFunction} using a consistent hash ring with virtual nodes, so that adding
+ * a shard moves only the users of the new shard.
+ * 
+ * @author sterlp
+ */
+public class ConsistentHashShardFunction implements ShardFunction {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    @Getter
+    private final int shards;
+    private final int[] ring;
+    private final int[] owners;
+
+    /**
+     * @param shards the amount of shards
+     */
+    public ConsistentHashShardFunction(int shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param shards the amount of shards
+     * @param virtualNodes the amount of points each shard has on the ring
+     */
+    public ConsistentHashShardFunction(int shards, int virtualNodes) {
+        if (shards < 1) throw new IllegalArgumentException("At least one shard is required, found " + shards);
+        if (virtualNodes < 1) throw new IllegalArgumentException("At least one virtual node is required, found " + virtualNodes);
+        this.shards = shards;
+
+        final TreeMap<Integer, Integer> points = new TreeMap<>();
+        for (int shard = 0; shard < shards; shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                points.putIfAbsent(hash("shard-" + shard + "#" + node), shard);
+            }
+        }
+        this.ring = new int[points.size()];
+        this.owners = new int[points.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> e : points.entrySet()) {
+            ring[i] = e.getKey();
+            owners[i++] = e.getValue();
+        }
+    }
+
+    @Override
+    public int shardOf(String username) {
+        final int hash = hash(username);
+        int low = 0;
+        int high = ring.length - 1;
+        // find the first point greater or equal the hash, wrap around to the first one
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (ring[mid] < hash) low = mid + 1;
+            else high = mid - 1;
+        }
+        return owners[low == ring.length ? 0 : low];
+    }
+
+    /**
+     * FNV-1a of the UTF-8 bytes with a murmur finalizer to spread the bits.
+     */
+    static int hash(String value) {
+        int h = 0x811c9dc5;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,14 @@
+package org.sterl.identitystore.shard;
+
+/**
+ * Decides which shard owns a user.
+ * 
+ * @author sterlp
+ */
+public interface ShardFunction {
+    /**
+     * @param username the user name
+     * @return the index of the shard which owns the user, between <code>0</code> and the shard count
+     */
+    int shardOf(String username);
+}
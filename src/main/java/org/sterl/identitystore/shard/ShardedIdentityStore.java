@@ -0,0 +1,148 @@
+package org.sterl.identitystore.shard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.sterl.hash.PasswordHasher;
+import org.sterl.identitystore.api.Identity;
+import org.sterl.identitystore.api.IdentityStore;
+import org.sterl.identitystore.api.VerificationResult;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Routes each user to the {@link IdentityStore} of the shard which owns the user, e.g.
+ * if the users are partitioned by their name across several databases. Each shard
+ * store could be cached on its own. Closing this store closes each shard.
+ *
+ * @author sterlp
+ */
+public class ShardedIdentityStore implements IdentityStore {
+    @Getter
+    private final List<IdentityStore> shards;
+    @NonNull @Getter
+    private final ShardFunction shardFunction;
+    /** used to load the users of each shard in parallel, <code>null</code> to load them one after the other */
+    private final Executor executor;
+
+    /**
+     * @param shards the {@link IdentityStore} of each shard, the index is the shard number
+     * @param shardFunction the {@link ShardFunction} deciding which shard owns a user
+     * @param executor optional {@link Executor} for {@link #loadAll(Collection)}, <code>null</code> to run it in the caller thread
+     */
+    public ShardedIdentityStore(@NonNull List<IdentityStore> shards, @NonNull ShardFunction shardFunction, Executor executor) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required.");
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.shardFunction = shardFunction;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a store using the {@link ConsistentHashShardFunction}.
+     *
+     * @param shards the {@link IdentityStore} of each shard
+     */
+    public ShardedIdentityStore(@NonNull List<IdentityStore> shards) {
+        this(shards, new ConsistentHashShardFunction(shards.size()), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public VerificationResult verify(String username, String inputPassword) {
+        return shardOf(username).verify(username, inputPassword);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Identity load(String username) {
+        return shardOf(username).load(username);
+    }
+
+    /**
+     * Loads the given users, the users are split by their shard and each shard is
+     * loaded in parallel if an {@link Executor} is set.
+     *
+     * @param usernames the users to load
+     * @return the {@link Identity} by user name, {@link Identity#NOT_FOUND} for unknown users
+     */
+    public Map<String, Identity> loadAll(Collection<String> usernames) {
+        final Map<Integer, List<String>> byShard = new HashMap<>();
+        for (String username : usernames) {
+            byShard.computeIfAbsent(shardFunction.shardOf(username), k -> new ArrayList<>()).add(username);
+        }
+
+        final Map<String, Identity> result = new HashMap<>();
+        if (executor == null || byShard.size() == 1) {
+            byShard.forEach((shard, names) -> result.putAll(load(shards.get(shard), names)));
+        } else {
+            final List<CompletableFuture<Map<String, Identity>>> loads = new ArrayList<>(byShard.size());
+            byShard.forEach((shard, names) -> loads.add(
+                    CompletableFuture.supplyAsync(() -> load(shards.get(shard), names), executor)));
+            try {
+                for (CompletableFuture<Map<String, Identity>> load : loads) {
+                    result.putAll(load.join());
+                }
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+                throw e;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The {@link PasswordHasher} of the first shard, all shards should use the same.
+     */
+    @Override
+    public PasswordHasher getPasswordHasher() {
+        return shards.get(0).getPasswordHasher();
+    }
+
+    /**
+     * @param username the user name
+     * @return the {@link IdentityStore} of the shard owning the user
+     */
+    public IdentityStore shardOf(String username) {
+        return shards.get(shardFunction.shardOf(username));
+    }
+
+    /**
+     * Closes each shard, e.g. to stop the snapshot reload or to release the dedicated 
+     * connections. All shards are closed, even if one fails.
+     * 
+     * @throws RuntimeException the first error, any further as suppressed
+     */
+    @Override
+    public void close() {
+        RuntimeException error = null;
+        for (IdentityStore shard : shards) {
+            try {
+                shard.close();
+            } catch (RuntimeException e) {
+                if (error == null) error = e;
+                else error.addSuppressed(e);
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    private static Map<String, Identity> load(IdentityStore shard, List<String> usernames) {
+        final Map<String, Identity> result = new HashMap<>();
+        for (String username : usernames) {
+            result.put(username, shard.load(username));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,23 @@
+package org.sterl.identitystore.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Common fields of all identity store events, the user name itself is never recorded.
+ *
+ * @author sterlp
+ */
+@Category("Identity Store")
+@StackTrace(false)
+abstract class AbstractIdentityEvent extends Event {
+    @Label("Username Hash")
+    @Description("Hash code of the user name, to correlate the events of one user")
+    int usernameHash;
+
+    @Label("Outcome")
+    String outcome;
+}
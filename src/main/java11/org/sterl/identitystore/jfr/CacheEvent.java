@@ -0,0 +1,19 @@
+package org.sterl.identitystore.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A lookup of the identity cache, outcome is <code>HIT</code>, <code>MISS</code>,
+ * <code>FALLBACK</code> or <code>ERROR</code>.
+ *
+ * @author sterlp
+ */
+@Name("org.sterl.identitystore.Cache")
+@Label("Identity Cache")
+@Description("Cache lookup of the identity store, including the reload on a miss")
+@Threshold("10 ms")
+class CacheEvent extends AbstractIdentityEvent {
+}
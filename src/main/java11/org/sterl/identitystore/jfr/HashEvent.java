@@ -0,0 +1,18 @@
+package org.sterl.identitystore.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A password hash check, outcome is <code>VALID</code> or <code>INVALID</code>.
+ *
+ * @author sterlp
+ */
+@Name("org.sterl.identitystore.PasswordHash")
+@Label("Password Hash")
+@Description("Password check of the password hasher")
+@Threshold("100 ms")
+class HashEvent extends AbstractIdentityEvent {
+}
@@ -0,0 +1,102 @@
+package org.sterl.identitystore.jfr;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Timing of an identity store operation, recorded as JDK Flight Recorder event.
+ * <p>
+ * This is the Java 11 version of the multi-release jar. An event is only created if
+ * it is enabled in the running recording, and only committed if it was slower than the
+ * threshold, see {@link QueryEvent}, {@link CacheEvent} and {@link HashEvent}.
+ * </p>
+ *
+ * @author sterlp
+ */
+public class IdentityEvent {
+    private static final IdentityEvent DISABLED = new IdentityEvent(null);
+
+    private final AbstractIdentityEvent event;
+
+    private IdentityEvent(AbstractIdentityEvent event) {
+        this.event = event;
+    }
+
+    /**
+     * @return <code>true</code> if the events are recorded by the running JVM
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Starts the timing of a DB query.
+     *
+     * @param query the SQL of the query
+     * @param username the user name used as parameter
+     * @return the started event, never <code>null</code>
+     */
+    public static IdentityEvent query(String query, String username) {
+        final QueryEvent event = new QueryEvent();
+        if (!event.isEnabled()) return DISABLED;
+        event.query = query;
+        return begin(event, username);
+    }
+
+    /**
+     * Starts the timing of a cache lookup, including the reload of the identity.
+     *
+     * @param username the user name to look up
+     * @return the started event, never <code>null</code>
+     */
+    public static IdentityEvent cache(String username) {
+        final CacheEvent event = new CacheEvent();
+        if (!event.isEnabled()) return DISABLED;
+        return begin(event, username);
+    }
+
+    /**
+     * Starts the timing of a password hash check.
+     *
+     * @param username the user name of the checked password
+     * @return the started event, never <code>null</code>
+     */
+    public static IdentityEvent hash(String username) {
+        final HashEvent event = new HashEvent();
+        if (!event.isEnabled()) return DISABLED;
+        return begin(event, username);
+    }
+
+    /**
+     * Times the given password hash check, the outcome is <code>VALID</code> or <code>INVALID</code>.
+     *
+     * @param username the user name of the checked password
+     * @param check the password hash check
+     * @return the result of the check
+     */
+    public static boolean hash(String username, BooleanSupplier check) {
+        final IdentityEvent event = hash(username);
+        final boolean result = check.getAsBoolean();
+        event.commit(result ? "VALID" : "INVALID");
+        return result;
+    }
+
+    /**
+     * Ends the timing and records the event if it was slower than the configured threshold.
+     *
+     * @param outcome the outcome of the operation e.g. <code>HIT</code> or <code>VALID</code>
+     */
+    public void commit(String outcome) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    private static IdentityEvent begin(AbstractIdentityEvent event, String username) {
+        event.usernameHash = username == null ? 0 : username.hashCode();
+        event.begin();
+        return new IdentityEvent(event);
+    }
+}
@@ -0,0 +1,21 @@
+package org.sterl.identitystore.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A password or groups query of the identity store, outcome is <code>FOUND</code>,
+ * <code>NOT_FOUND</code> or <code>ERROR</code>.
+ *
+ * @author sterlp
+ */
+@Name("org.sterl.identitystore.Query")
+@Label("Identity Query")
+@Description("Password or groups query of the identity store")
+@Threshold("10 ms")
+class QueryEvent extends AbstractIdentityEvent {
+    @Label("Query")
+    String query;
+}
@@ -1,17 +1,27 @@
 package org.sterl.identitystore;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
 
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
@@ -19,15 +29,20 @@ import org.h2.jdbcx.JdbcDataSource;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.sterl.hash.Algorithm;
 import org.sterl.identitystore.api.Identity;
 import org.sterl.identitystore.api.IdentityStore;
 import org.sterl.identitystore.api.VerificationResult;
+import org.sterl.identitystore.api.VerificationResult.Status;
 import org.sterl.identitystore.builder.IdentityStoreBuilder;
+import org.sterl.identitystore.group.GroupMapper;
+import org.sterl.identitystore.jdbc.Bulkhead;
 
 public class IdentityStoresTest {
 
     static DataSource datasource;
+    static DataSource replica;
     static String schema;
 
     @BeforeAll
@@ -39,16 +54,23 @@ public class IdentityStoresTest {
         schema = new String(Files.readAllBytes(Paths.get(
                 IdentityStoresTest.class.getResource("/drop-create-default-shema.sql").getFile())));
         datasource = ds;
+        
+        JdbcDataSource rds = new JdbcDataSource();
+        rds.setUrl("jdbc:h2:mem:test_replica;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+        rds.setUser("sa");
+        replica = rds;
     }
 
     @BeforeEach
     void init() throws Exception {
-        try (Connection c = datasource.getConnection()) {
-            c.setAutoCommit(false);
-            try (Statement s = c.createStatement()) {
-                s.execute(schema);
+        for (DataSource ds : Arrays.asList(datasource, replica)) {
+            try (Connection c = ds.getConnection()) {
+                c.setAutoCommit(false);
+                try (Statement s = c.createStatement()) {
+                    s.execute(schema);
+                }
+                c.commit();
             }
-            c.commit();
         }
     }
 
@@ -91,6 +113,189 @@ public class IdentityStoresTest {
         assertEquals(Collections.EMPTY_SET, subject.verify("user", "user").getGroups());
     }
     
+    @Test
+    void testGroupsNotLoadedForInvalidPassword() throws Exception {
+        final IdentityStore subject = IdentityStoreBuilder
+                .jdbcBuilder(datasource)
+                .withHashAlgorithm(Algorithm.PBKDF2WithHmacSHA224)
+                .withGroupsQuery("select usergroup from not_existing where username = ?")
+                .build();
+        createUser(new Identity("admin", 
+                subject.getPasswordHasher().encode("pass"), 
+                from("ADMIN")), datasource);
+
+        // the broken groups query is only executed for a valid password
+        assertEquals(VerificationResult.INVALID_PASSWORD, subject.verify("admin", "foo"));
+        assertEquals(VerificationResult.NOT_FOUND, subject.verify("user", "foo"));
+        assertThrows(RuntimeException.class, () -> subject.verify("admin", "pass"));
+    }
+    
+    @Test
+    void testGroupsNotLoadedForInvalidPasswordOfCachedUser() throws Exception {
+        final IdentityStore subject = IdentityStoreBuilder
+                .jdbcBuilder(datasource)
+                .withHashAlgorithm(Algorithm.PBKDF2WithHmacSHA224)
+                .withCache(Duration.ofHours(1))
+                .build();
+        createUser(new Identity("admin", 
+                subject.getPasswordHasher().encode("pass"), 
+                from("ADMIN")), datasource);
+        assertEquals(Status.VALID, subject.verify("admin", "pass").getStatus());
+
+        try (Connection c = datasource.getConnection(); Statement s = c.createStatement()) {
+            s.execute("DROP TABLE groups");
+        }
+        // the failed cache hit is checked again only with the password query
+        assertEquals(Status.INVALID_PASSWORD, subject.verify("admin", "foo").getStatus());
+        assertEquals(Status.VALID, subject.verify("admin", "pass").getStatus());
+    }
+    
+    @Test
+    void testConcurrentQueries() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final IdentityStore subject = IdentityStoreBuilder
+                    .jdbcBuilder(datasource)
+                    .withHashAlgorithm(Algorithm.PBKDF2WithHmacSHA224)
+                    .withConcurrentQueries(executor)
+                    .build();
+            createUser(new Identity("admin", 
+                    subject.getPasswordHasher().encode("pass"), 
+                    from("USER", "ADMIN")), datasource);
+            
+            assertEquals(from("USER", "ADMIN"), subject.load("admin").getGroups());
+            assertEquals(Identity.NOT_FOUND, subject.load("user"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    void testConcurrentQueriesWithFailedPasswordQuery() throws Exception {
+        final AtomicInteger openConnections = new AtomicInteger();
+        final DataSource counting = countConnections(datasource, openConnections);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final IdentityStore subject = IdentityStoreBuilder
+                    .jdbcBuilder(counting)
+                    .withPasswordQuery("select broken from users where username = ?")
+                    // slow groups query, which is still running as the password query fails
+                    .withGroupsQuery("select usergroup from groups where username = ? "
+                            + "and (select count(*) from system_range(1, 1000000)) > 0")
+                    .withConcurrentQueries(executor)
+                    .build();
+
+            for (int i = 0; i < 5; i++) {
+                assertThrows(RuntimeException.class, () -> subject.load("admin"));
+                assertEquals(0, openConnections.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    void testReadReplica() throws Exception {
+        final IdentityStore subject = IdentityStoreBuilder
+                .jdbcBuilder(datasource)
+                .withHashAlgorithm(Algorithm.PBKDF2WithHmacSHA224)
+                .withReadReplicas(replica)
+                .build();
+        
+        createUser(new Identity("admin", 
+                subject.getPasswordHasher().encode("pass"), 
+                from("ADMIN")), datasource);
+        createUser(new Identity("admin", 
+                subject.getPasswordHasher().encode("pass"), 
+                from("REPLICA")), replica);
+
+        assertEquals(from("REPLICA"), subject.verify("admin", "pass").getGroups());
+    }
+    
+    @Test
+    void testGroupPrefixWithGroupMapper() {
+        final IdentityStoreBuilder subject = IdentityStoreBuilder
+                .jdbcBuilder(datasource)
+                .withGroupPrefix("ROLE_")
+                .withGroupMapper(GroupMapper.prefix("ROLE_"));
+
+        assertThrows(IllegalStateException.class, () -> subject.build());
+    }
+    
+    @Test
+    void testSnapshotRejectsSingleUserSettings() {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertThrows(IllegalStateException.class, () -> IdentityStoreBuilder.jdbcBuilder(datasource)
+                    .withInMemorySnapshot(Duration.ofMinutes(1))
+                    .withBulkhead(new Bulkhead(2))
+                    .build());
+            assertThrows(IllegalStateException.class, () -> IdentityStoreBuilder.jdbcBuilder(datasource)
+                    .withInMemorySnapshot(Duration.ofMinutes(1))
+                    .withConcurrentQueries(executor)
+                    .build());
+            assertThrows(IllegalStateException.class, () -> IdentityStoreBuilder.jdbcBuilder(datasource)
+                    .withInMemorySnapshot(Duration.ofMinutes(1))
+                    .withCache(Duration.ofMinutes(1))
+                    .withOffHeapCache(100)
+                    .build());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    void testCloseReleasesBulkheadConnections() throws Exception {
+        final AtomicInteger openConnections = new AtomicInteger();
+        final IdentityStore subject = IdentityStoreBuilder
+                .jdbcBuilder(countConnections(datasource, openConnections))
+                .withHashAlgorithm(Algorithm.PBKDF2WithHmacSHA224)
+                .withCache(Duration.ofMillis(1))
+                .withBulkhead(new Bulkhead(2))
+                .build();
+        createUser(new Identity("admin", 
+                subject.getPasswordHasher().encode("pass"), 
+                from("ADMIN")), datasource);
+
+        assertEquals(from("ADMIN"), subject.verify("admin", "pass").getGroups());
+        // the dedicated connection stays open
+        assertEquals(1, openConnections.get());
+
+        subject.close();
+        assertEquals(0, openConnections.get());
+    }
+    
+    @Test
+    void testCloseWritesHotUsers(@TempDir Path dir) throws Exception {
+        final Path file = dir.resolve("hot-users.txt");
+        final IdentityStore subject = IdentityStoreBuilder.jdbcBuilder(datasource)
+                .withHashAlgorithm(Algorithm.PBKDF2WithHmacSHA224)
+                .withCache(Duration.ofMinutes(1))
+                .withHotUsers(file, 10, Duration.ofMinutes(1))
+                .build();
+        createUser(new Identity("admin", 
+                subject.getPasswordHasher().encode("pass"), 
+                from("ADMIN")), datasource);
+        assertEquals(Status.VALID, subject.verify("admin", "pass").getStatus());
+
+        subject.close();
+        assertEquals(Collections.singletonList("admin"), Files.readAllLines(file));
+    }
+    
+    private static DataSource countConnections(DataSource dataSource, AtomicInteger openConnections) throws SQLException {
+        final DataSource result = mock(DataSource.class);
+        when(result.getConnection()).thenAnswer(i -> {
+            final Connection c = spy(dataSource.getConnection());
+            openConnections.incrementAndGet();
+            doAnswer(close -> {
+                openConnections.decrementAndGet();
+                return close.callRealMethod();
+            }).when(c).close();
+            return c;
+        });
+        return result;
+    }
+    
     private void createUser(Identity identity, DataSource dataSource) throws SQLException {
         try (Connection c = dataSource.getConnection()) {
             try (PreparedStatement s = c.prepareStatement("INSERT INTO users (username, password) VALUES(?, ?)")) {
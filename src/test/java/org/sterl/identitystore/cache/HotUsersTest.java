@@ -0,0 +1,138 @@
+package org.sterl.identitystore.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.sterl.hash.Algorithm;
+import org.sterl.hash.BCryptPbkdf2PasswordHash;
+import org.sterl.identitystore.api.Identity;
+import org.sterl.identitystore.api.IdentityStore;
+import org.sterl.identitystore.api.VerificationResult.Status;
+
+class HotUsersTest {
+
+    final BCryptPbkdf2PasswordHash hasher = new BCryptPbkdf2PasswordHash(Algorithm.PBKDF2WithHmacSHA224);
+    @TempDir
+    Path dir;
+    Path file;
+    IdentityStore wrapped;
+
+    @BeforeEach
+    void before() {
+        file = dir.resolve("hot-users.txt");
+        wrapped = mock(IdentityStore.class);
+        when(wrapped.getPasswordHasher()).thenReturn(hasher);
+        when(wrapped.load(anyString())).thenAnswer(
+                i -> new Identity(i.getArgument(0), hasher.encode("pass"), Identity.from("USER")));
+        when(wrapped.load("unknown")).thenReturn(Identity.NOT_FOUND);
+    }
+
+    @Test
+    void testWritesTopUsers() throws Exception {
+        final HotUsers subject = new HotUsers(file, 2, null);
+        for (int i = 0; i < 3; i++) subject.record("a");
+        for (int i = 0; i < 2; i++) subject.record("b");
+        subject.record("c");
+        subject.close();
+
+        assertEquals(Arrays.asList("a", "b"), Files.readAllLines(file));
+        assertEquals(Arrays.asList("a", "b"), new HotUsers(file, 2, null).read());
+    }
+
+    @Test
+    void testKeepsFileWithoutUsage() throws Exception {
+        Files.write(file, Arrays.asList("a", "b"));
+        new HotUsers(file, 10, null).close();
+
+        assertEquals(Arrays.asList("a", "b"), Files.readAllLines(file));
+    }
+
+    @Test
+    void testClosesOnlyOnce() throws Exception {
+        final HotUsers subject = new HotUsers(file, 10, Duration.ofMinutes(1));
+        subject.record("a");
+        subject.close();
+        subject.record("b");
+        subject.close();
+
+        assertEquals(Collections.singletonList("a"), Files.readAllLines(file));
+    }
+
+    @Test
+    void testClosedWithCachedStore() throws Exception {
+        final CachedIdentityStore subject = new CachedIdentityStore(wrapped, Duration.ofHours(1), false);
+        subject.setHotUsers(new HotUsers(file, 10, Duration.ofMinutes(1)));
+        assertEquals(Status.VALID, subject.verify("a", "pass").getStatus());
+
+        subject.close();
+
+        assertEquals(Collections.singletonList("a"), Files.readAllLines(file));
+        verify(wrapped).close();
+    }
+
+    @Test
+    void testRecordsValidVerifications() throws Exception {
+        final HotUsers hotUsers = new HotUsers(file, 10, null);
+        final CachedIdentityStore subject = new CachedIdentityStore(wrapped, Duration.ofHours(1), false);
+        subject.setHotUsers(hotUsers);
+
+        assertEquals(Status.VALID, subject.verify("a", "pass").getStatus());
+        assertEquals(Status.INVALID_PASSWORD, subject.verify("b", "foo").getStatus());
+
+        assertEquals(Collections.singletonList("a"), hotUsers.getCurrentTopUsers());
+    }
+
+    @Test
+    void testWarmUp() throws Exception {
+        Files.write(file, Arrays.asList("unknown", "user_1", "user_2", "user_3"));
+        final CachedIdentityStore subject = new CachedIdentityStore(wrapped, Duration.ofHours(1), false);
+
+        assertEquals(3, new HotUsers(file, 10, null).warmUp(subject, 2));
+        assertEquals(3, subject.getCacheSize());
+
+        assertEquals(Status.VALID, subject.verify("user_1", "pass").getStatus());
+        assertTrue(subject.verify("user_2", "pass").isCacheHit());
+        verify(wrapped, times(1)).load("user_1");
+    }
+
+    @Test
+    void testKeepsTopUsersAfterRestart() throws Exception {
+        Files.write(file, Arrays.asList("user_1", "unknown", "user_2", "user_3"));
+        final HotUsers hotUsers = new HotUsers(file, 10, null);
+        final CachedIdentityStore subject = new CachedIdentityStore(wrapped, Duration.ofHours(1), false);
+        subject.setHotUsers(hotUsers);
+        assertEquals(3, hotUsers.warmUp(subject, 2));
+
+        assertEquals(Status.VALID, subject.verify("user_4", "pass").getStatus());
+        subject.close();
+
+        final List<String> written = Files.readAllLines(file);
+        assertEquals(Arrays.asList("user_1", "user_2"), written.subList(0, 2));
+        assertEquals(new HashSet<>(Arrays.asList("user_1", "user_2", "user_3", "user_4")), new HashSet<>(written));
+    }
+
+    @Test
+    void testWarmUpWithoutFile() {
+        final CachedIdentityStore subject = new CachedIdentityStore(wrapped, Duration.ofHours(1), false);
+
+        assertEquals(0, new HotUsers(file, 10, null).warmUp(subject, 2));
+        assertFalse(Files.exists(file));
+    }
+}
@@ -6,11 +6,13 @@ import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.time.Duration;
+import java.util.HashSet;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -71,6 +73,17 @@ public class IdentityStoreCacheTest {
         assertTrue(start * 2 < time);
     }
 
+    @Test
+    void testSameGroupsOnEveryPath() {
+        final VerificationResult hashed = subject.verify(USER_NAME, USER_PASS);
+        final VerificationResult raw = subject.verify(USER_NAME, USER_PASS);
+
+        assertEquals(hashed.getGroups(), raw.getGroups());
+        // a modifiable copy, which doesn't change the cached identity
+        raw.getGroups().add("foo");
+        assertEquals(Identity.from("admin"), subject.verify(USER_NAME, USER_PASS).getGroups());
+    }
+
     @Test
     void testFallback() throws Exception {
         subject = new CachedIdentityStore(
@@ -98,10 +111,34 @@ public class IdentityStoreCacheTest {
         
         identity = new Identity(USER_NAME, hasher.encode("fo1"), null);
         when(wrapped.load(anyString())).thenReturn(identity);
+        when(wrapped.verify(USER_NAME, "fo1")).thenReturn(new VerificationResult(Status.VALID, null));
         
         assertEquals(Status.VALID, subject.verify(USER_NAME, "fo1").getStatus());
-        assertEquals(null, subject.verify(USER_NAME, "fo1").getGroups());
+        assertEquals(new HashSet<>(), subject.verify(USER_NAME, "fo1").getGroups());
+        assertTrue(subject.verify(USER_NAME, "fo1").isCacheHit());
         verify(wrapped, times(2)).load(anyString());
+        verify(wrapped, times(1)).verify(USER_NAME, "fo1");
+    }
+
+    @Test
+    void testFailedPasswordDoesNotReload() {
+        assertEquals(Status.VALID, subject.verify(USER_NAME, USER_PASS).getStatus());
+        when(wrapped.verify(USER_NAME, "foo")).thenReturn(VerificationResult.INVALID_PASSWORD);
+
+        assertEquals(Status.INVALID_PASSWORD, subject.verify(USER_NAME, "foo").getStatus());
+        assertFalse(subject.verify(USER_NAME, "foo").isCacheHit());
+        // only the password is checked again, the cached identity with its groups is kept
+        verify(wrapped, times(1)).load(anyString());
+        verify(wrapped, times(2)).verify(USER_NAME, "foo");
+        assertTrue(subject.verify(USER_NAME, USER_PASS).isCacheHit());
+    }
+
+    @Test
+    void testFailedPasswordOfFreshIdentity() {
+        assertEquals(Status.INVALID_PASSWORD, subject.verify(USER_NAME, "foo").getStatus());
+
+        verify(wrapped, times(1)).load(anyString());
+        verify(wrapped, never()).verify(anyString(), anyString());
     }
     
     @Test
@@ -0,0 +1,143 @@
+package org.sterl.identitystore.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.sterl.hash.BCryptPbkdf2PasswordHash;
+import org.sterl.identitystore.api.Identity;
+import org.sterl.identitystore.api.IdentityStore;
+import org.sterl.identitystore.api.VerificationResult.Status;
+
+class OffHeapIdentityCacheTest {
+
+    @Test
+    void testPutAndGet() {
+        final OffHeapIdentityCache subject = new OffHeapIdentityCache();
+        subject.put("user", new CachedIdentity(new Identity("user", "hash", Identity.from("a", "b")), 5));
+        subject.put("nulls", new CachedIdentity(new Identity("nulls", null, null), 6));
+
+        final CachedIdentity user = subject.get("user");
+        assertEquals("user", user.getIdentity().getUsername());
+        assertEquals("hash", user.getIdentity().getHashedPassword());
+        assertEquals(Identity.from("a", "b"), user.getIdentity().getGroups());
+        assertEquals(5, user.getCachedTime());
+
+        final CachedIdentity nulls = subject.get("nulls");
+        assertNull(nulls.getIdentity().getHashedPassword());
+        assertNull(nulls.getIdentity().getGroups());
+        assertNull(subject.get("foo"));
+        assertEquals(2, subject.size());
+    }
+
+    @Test
+    void testResizeAndUpdate() {
+        final OffHeapIdentityCache subject = new OffHeapIdentityCache(4, 1024);
+        for (int i = 0; i < 1_000; i++) {
+            subject.put("user_" + i, new CachedIdentity(
+                    new Identity("user_" + i, "hash_" + i, Identity.from("GROUP_" + (i % 10))), i));
+        }
+        // replace all entries twice, which compacts the slabs
+        for (int r = 0; r < 2; r++) {
+            for (int i = 0; i < 1_000; i++) {
+                subject.put("user_" + i, new CachedIdentity(
+                        new Identity("user_" + i, "new_hash_" + i, Identity.from("USER")), i + r));
+            }
+        }
+
+        assertEquals(1_000, subject.size());
+        for (int i = 0; i < 1_000; i++) {
+            final Identity identity = subject.get("user_" + i).getIdentity();
+            assertEquals("new_hash_" + i, identity.getHashedPassword());
+            assertEquals(Identity.from("USER"), identity.getGroups());
+        }
+        assertTrue(subject.getUsedBytes() < 2 * 1_000 * 40, "Not compacted " + subject.getUsedBytes());
+    }
+
+    @Test
+    void testConcurrentAccess() throws Exception {
+        final OffHeapIdentityCache subject = new OffHeapIdentityCache(16, 4096);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < 2_000; i++) {
+                    final String name = "user_" + thread + "_" + i;
+                    subject.put(name, new CachedIdentity(new Identity(name, "hash", Identity.from("USER")), i));
+                    assertEquals(name, subject.get(name).getIdentity().getUsername());
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(8_000, subject.size());
+    }
+
+    /**
+     * Compares the footprint of the same identities in the map and the off heap cache,
+     * the numbers are printed and listed in the README.
+     */
+    @Test
+    void testFootprint() {
+        final int n = 200_000;
+        long before = usedHeap();
+        final MapIdentityCache map = new MapIdentityCache();
+        fill(map, n);
+        final long mapHeap = usedHeap() - before;
+        assertEquals(n, map.size());
+
+        before = usedHeap();
+        final OffHeapIdentityCache offHeap = new OffHeapIdentityCache(n, OffHeapIdentityCache.DEFAULT_SLAB_SIZE);
+        fill(offHeap, n);
+        final long offHeapHeap = usedHeap() - before;
+        assertEquals(n, offHeap.size());
+
+        System.out.printf("%,d identities: map cache %,d KB heap; off heap cache %,d KB heap + %,d KB direct (%,d KB used)%n",
+                n, mapHeap / 1024, offHeapHeap / 1024, offHeap.getOffHeapBytes() / 1024, offHeap.getUsedBytes() / 1024);
+        assertTrue(offHeapHeap * 4 < mapHeap, "Off heap " + offHeapHeap + " map " + mapHeap);
+        assertTrue(offHeap.getOffHeapBytes() < mapHeap, "Direct " + offHeap.getOffHeapBytes() + " map " + mapHeap);
+    }
+
+    /**
+     * Adds identities with a 60 char BCrypt hash and two groups.
+     */
+    private static void fill(IdentityCache cache, int n) {
+        for (int i = 0; i < n; i++) {
+            final String username = "user_" + i;
+            final String hash = String.format("$2a$10$%053d", i);
+            cache.put(username, new CachedIdentity(new Identity(username, hash, Identity.from("USER", "ADMIN")), i));
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    void testOffHeapStore() {
+        final BCryptPbkdf2PasswordHash hasher = new BCryptPbkdf2PasswordHash();
+        final IdentityStore wrapped = mock(IdentityStore.class);
+        when(wrapped.getPasswordHasher()).thenReturn(hasher);
+        when(wrapped.load(anyString())).thenReturn(new Identity("user", hasher.encode("pass"), Identity.from("admin")));
+        final CachedIdentityStore subject = CachedIdentityStore.offHeap(wrapped, Duration.ofHours(1), 100);
+
+        assertEquals(Status.VALID, subject.verify("user", "pass").getStatus());
+        assertTrue(subject.verify("user", "pass").isCacheHit());
+        assertEquals(Identity.from("admin"), subject.load("user").getGroups());
+        assertEquals(1, subject.getCacheSize());
+        verify(wrapped, times(1)).load(anyString());
+    }
+}
@@ -0,0 +1,127 @@
+package org.sterl.identitystore.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class SpaceSavingSketchTest {
+
+    @Test
+    void testCountsExactBelowCapacity() {
+        final SpaceSavingSketch subject = new SpaceSavingSketch(10);
+        for (int i = 0; i < 3; i++) subject.add("a");
+        for (int i = 0; i < 2; i++) subject.add("b");
+        subject.add("c");
+
+        assertEquals(Arrays.asList("a", "b", "c"), subject.top(10));
+        assertEquals(Arrays.asList("a", "b"), subject.top(2));
+        assertEquals(3, subject.count("a"));
+        assertEquals(0, subject.count("d"));
+    }
+
+    @Test
+    void testReplacesMinimum() {
+        final SpaceSavingSketch subject = new SpaceSavingSketch(2);
+        subject.add("a");
+        subject.add("a");
+        subject.add("b");
+        subject.add("c");
+
+        assertEquals(2, subject.size());
+        // c inherits the count of b as error
+        assertEquals(2, subject.count("c"));
+        assertEquals(0, subject.count("b"));
+    }
+
+    @Test
+    void testFindsHeavyHitters() {
+        final SpaceSavingSketch subject = new SpaceSavingSketch(40);
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            if (random.nextInt(10) < 3) {
+                // 30% of the traffic from 5 hot users
+                subject.add("hot_" + random.nextInt(5));
+            } else {
+                subject.add("user_" + random.nextInt(50_000));
+            }
+        }
+
+        assertEquals(40, subject.size());
+        final List<String> top = subject.top(5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(top.contains("hot_" + i), top.toString());
+        }
+    }
+
+    @Test
+    void testMergesStripes() {
+        final SpaceSavingSketch subject = new SpaceSavingSketch(64, 4);
+        assertEquals(4, subject.getStripes());
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j <= i; j++) subject.add("user_" + i);
+        }
+
+        assertEquals(10, subject.size());
+        assertEquals(Arrays.asList("user_9", "user_8", "user_7"), subject.top(3));
+        assertEquals(10, subject.count("user_9"));
+    }
+
+    @Test
+    void testLimitsStripesByCapacity() {
+        assertEquals(1, new SpaceSavingSketch(1, 16).getStripes());
+        assertEquals(4, new SpaceSavingSketch(4, 3).getStripes());
+        assertEquals(16, new SpaceSavingSketch(4000, 16).getStripes());
+    }
+
+    @Test
+    void testAddDoesNotWaitForOtherStripes() throws Exception {
+        final SpaceSavingSketch subject = new SpaceSavingSketch(4000, 16);
+        String other = "b";
+        for (int i = 0; subject.stripe(other) == subject.stripe("a"); i++) other = "b" + i;
+        final String item = other;
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // a login of user a holds its stripe
+            synchronized (subject.stripe("a")) {
+                executor.submit(() -> subject.add(item)).get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, subject.count(item));
+    }
+
+    @Test
+    void testConcurrentAdds() throws Exception {
+        final SpaceSavingSketch subject = new SpaceSavingSketch(400, 16);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) subject.add("user_" + (i % 100));
+                }));
+            }
+            for (Future<?> f : results) f.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // below the capacity of each stripe all counts are exact
+        assertEquals(100, subject.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(800, subject.count("user_" + i));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.sterl.identitystore.group;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.sterl.identitystore.api.Identity;
+
+class GroupMapperTest {
+
+    @Test
+    void testPrefix() {
+        final GroupMapper subject = GroupMapper.prefix("ROLE_");
+        assertEquals(Identity.from("ROLE_USER", "ROLE_ADMIN"), subject.map(Identity.from("USER", "ADMIN")));
+        assertTrue(subject.map(null).isEmpty());
+        assertSame(GroupMapper.NONE, GroupMapper.prefix(""));
+    }
+
+    @Test
+    void testPipeline() {
+        final GroupMapper subject = GroupMapper.builder()
+                .rename("administrators", "admin")
+                .filter(g -> !g.startsWith("tmp_"))
+                .implies("admin", "user", "auditor")
+                .implies("auditor", "reader")
+                .prefix("ROLE_")
+                .build();
+
+        assertEquals(Identity.from("ROLE_admin", "ROLE_user", "ROLE_auditor", "ROLE_reader"),
+                subject.map(Identity.from("administrators", "tmp_foo")));
+        assertEquals(Identity.from("ROLE_auditor", "ROLE_reader"),
+                subject.map(Identity.from("auditor")));
+    }
+
+    @Test
+    void testHierarchyCycle() {
+        final GroupMapper subject = GroupMapper.builder()
+                .implies("a", "b")
+                .implies("b", "a", "c")
+                .build();
+
+        assertEquals(Identity.from("a", "b", "c"), subject.map(Identity.from("a")));
+        assertEquals(Identity.from("a", "b", "c"), subject.map(Identity.from("b")));
+    }
+
+    @Test
+    void testMemoizedAndImmutable() {
+        final GroupMapper subject = GroupMapper.builder().implies("admin", "user").build();
+
+        assertSame(subject.map(Identity.from("admin")), subject.map(Identity.from("admin")));
+        assertEquals(1, subject.getMemoizedCount());
+        assertThrows(UnsupportedOperationException.class, 
+                () -> subject.map(Identity.from("admin")).add("foo"));
+    }
+
+    @Test
+    void testMaxMemoized() {
+        final GroupMapper subject = GroupMapper.builder().prefix("ROLE_").maxMemoized(10).build();
+        final Set<String> first = subject.map(Identity.from("group_0"));
+        for (int i = 1; i < 100; i++) {
+            subject.map(Identity.from("group_" + i));
+            // the recently used group is kept
+            assertSame(first, subject.map(Identity.from("group_0")));
+        }
+        assertEquals(10, subject.getMemoizedCount());
+    }
+
+    @Test
+    void testNoneIsPassThrough() {
+        final Set<String> groups = Identity.from("USER", "ADMIN");
+        final Set<String> result = GroupMapper.NONE.map(groups);
+
+        assertEquals(groups, result);
+        assertThrows(UnsupportedOperationException.class, () -> result.add("foo"));
+        assertEquals(0, GroupMapper.NONE.getMemoizedCount());
+        assertEquals(0, GroupMapper.builder().build().getMemoizedCount());
+    }
+}
@@ -0,0 +1,176 @@
+package org.sterl.identitystore.jdbc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BulkheadConnectionPoolTest {
+
+    JdbcDataSource dataSource;
+    BulkheadConnectionPool subject;
+
+    @BeforeEach
+    void before() {
+        dataSource = new JdbcDataSource();
+        dataSource.setUrl("jdbc:h2:mem:bulkhead;DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        subject = new BulkheadConnectionPool(dataSource, new Bulkhead(2, Duration.ofMillis(100)));
+    }
+
+    @AfterEach
+    void after() {
+        subject.close();
+    }
+
+    @Test
+    void testReusesConnectionAndStatement() throws Exception {
+        final Connection[] connections = new Connection[2];
+        final PreparedStatement[] statements = new PreparedStatement[2];
+        for (int i = 0; i < 2; i++) {
+            final int index = i;
+            subject.execute(s -> {
+                connections[index] = s.getConnection();
+                statements[index] = s.prepare("SELECT 1");
+                s.release(statements[index]);
+                return null;
+            });
+        }
+        assertSame(connections[0], connections[1]);
+        assertSame(statements[0], statements[1]);
+        assertEquals(1, subject.getIdleCount());
+        assertEquals(0, subject.getActiveCount());
+    }
+
+    @Test
+    void testClosesConnectionOnError() throws Exception {
+        final Connection[] connections = new Connection[2];
+        assertThrows(SQLException.class, () -> subject.execute(s -> {
+            connections[0] = s.getConnection();
+            throw new SQLException("broken");
+        }));
+        assertTrue(connections[0].isClosed());
+        assertEquals(0, subject.getIdleCount());
+
+        connections[1] = subject.execute(s -> s.getConnection());
+        assertNotSame(connections[0], connections[1]);
+    }
+
+    @Test
+    void testSeesCommittedChanges() throws Exception {
+        final DataSource noAutoCommit = mock(DataSource.class);
+        when(noAutoCommit.getConnection()).thenAnswer(i -> {
+            final Connection c = dataSource.getConnection();
+            c.setAutoCommit(false);
+            c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            return c;
+        });
+        subject = new BulkheadConnectionPool(noAutoCommit, new Bulkhead(1));
+        try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+            s.execute("DROP TABLE IF EXISTS users; CREATE TABLE users (username VARCHAR(50), password VARCHAR(50));"
+                    + "INSERT INTO users VALUES ('user', 'old')");
+        }
+        assertEquals("old", subject.execute(BulkheadConnectionPoolTest::password));
+
+        try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+            s.execute("UPDATE users SET password = 'new' WHERE username = 'user'");
+        }
+        assertEquals("new", subject.execute(BulkheadConnectionPoolTest::password));
+        assertEquals(1, subject.getIdleCount());
+    }
+
+    @Test
+    void testAcquireTimeout() throws Exception {
+        final CountDownLatch busy = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2; i++) {
+                executor.submit(() -> subject.execute(s -> {
+                    busy.countDown();
+                    await(release);
+                    return null;
+                }));
+            }
+            assertTrue(busy.await(5, TimeUnit.SECONDS));
+            assertEquals(2, subject.getActiveCount());
+
+            assertThrows(BulkheadConnectionPool.BulkheadFullException.class, () -> subject.execute(s -> null));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testLimitsConcurrency() throws Exception {
+        subject = new BulkheadConnectionPool(dataSource, new Bulkhead(2, Duration.ofSeconds(10)));
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final Future<?>[] futures = new Future<?>[32];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(() -> subject.execute(s -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    await(new CountDownLatch(1), 2);
+                    running.decrementAndGet();
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) f.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(maxRunning.get() <= 2, "Max concurrent connections " + maxRunning.get());
+        assertTrue(subject.getIdleCount() <= 2);
+    }
+
+    private static String password(JdbcSession s) throws SQLException {
+        final PreparedStatement statement = s.prepare("SELECT password FROM users WHERE username = ?");
+        try {
+            statement.setString(1, "user");
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        } finally {
+            s.release(statement);
+        }
+    }
+
+    static void await(CountDownLatch latch) throws SQLException {
+        await(latch, 10_000);
+    }
+
+    private static void await(CountDownLatch latch, long millis) throws SQLException {
+        try {
+            latch.await(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.sterl.identitystore.jdbc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.sterl.hash.Algorithm;
+import org.sterl.hash.BCryptPbkdf2PasswordHash;
+import org.sterl.identitystore.api.Identity;
+import org.sterl.identitystore.api.VerificationResult;
+import org.sterl.identitystore.api.VerificationResult.Status;
+
+class JdbcSnapshotIdentityStoreTest {
+
+    final BCryptPbkdf2PasswordHash hasher = new BCryptPbkdf2PasswordHash(Algorithm.PBKDF2WithHmacSHA224);
+    JdbcDataSource dataSource;
+    JdbcSnapshotIdentityStore subject;
+
+    @BeforeEach
+    void before() throws Exception {
+        dataSource = new JdbcDataSource();
+        dataSource.setUrl("jdbc:h2:mem:snapshot;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+        dataSource.setUser("sa");
+        execute(new String(Files.readAllBytes(Paths.get(
+                getClass().getResource("/drop-create-default-shema.sql").getFile()))));
+        for (int i = 1; i <= 10; i++) {
+            createUser("user_" + i, "pass_" + i, "USER", "GROUP_" + i);
+        }
+        subject = new JdbcSnapshotIdentityStore(dataSource, hasher, null);
+    }
+
+    @AfterEach
+    void after() {
+        subject.close();
+    }
+
+    @Test
+    void testVerify() throws Exception {
+        assertEquals(10, subject.size());
+        assertEquals(VerificationResult.NOT_FOUND, subject.verify("user", "foo"));
+        assertEquals(VerificationResult.INVALID_PASSWORD, subject.verify("user_1", "foo"));
+        final VerificationResult result = subject.verify("user_2", "pass_2");
+        assertEquals(Status.VALID, result.getStatus());
+        assertEquals(Identity.from("USER", "GROUP_2"), result.getGroups());
+        assertTrue(result.isCacheHit());
+
+        // verify works without the DB
+        execute("DROP TABLE groups; DROP TABLE users;");
+        assertEquals(Status.VALID, subject.verify("user_3", "pass_3").getStatus());
+    }
+
+    @Test
+    void testReload() throws Exception {
+        createUser("new_user", "pass", "USER");
+        assertSame(Identity.NOT_FOUND, subject.load("new_user"));
+
+        assertTrue(subject.reload());
+        assertEquals(Status.VALID, subject.verify("new_user", "pass").getStatus());
+        assertEquals(11, subject.size());
+    }
+
+    @Test
+    void testKeepsSnapshotIfReloadFails() throws Exception {
+        final long snapshotTime = subject.getSnapshotTime();
+        execute("DROP TABLE groups; DROP TABLE users;");
+
+        assertFalse(subject.reload());
+        assertTrue(subject.isStale());
+        assertEquals(snapshotTime, subject.getSnapshotTime());
+        final VerificationResult result = subject.verify("user_1", "pass_1");
+        assertEquals(Status.VALID, result.getStatus());
+        assertNotNull(result.getSuppressedError());
+    }
+
+    @Test
+    void testScheduledReload() throws Exception {
+        subject.close();
+        subject = new JdbcSnapshotIdentityStore(dataSource, hasher, Duration.ofMillis(10));
+        createUser("new_user", "pass", "USER");
+
+        for (int i = 0; i < 100 && subject.size() < 11; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Status.VALID, subject.verify("new_user", "pass").getStatus());
+        assertNull(subject.getLastError());
+    }
+
+    @Test
+    void testScheduledReloadSurvivesError() throws Exception {
+        subject.close();
+        final DataSource broken = mock(DataSource.class);
+        when(broken.getConnection())
+            .thenAnswer(i -> dataSource.getConnection())
+            .thenThrow(new AssertionError("boom"))
+            .thenAnswer(i -> dataSource.getConnection());
+        subject = new JdbcSnapshotIdentityStore(broken, hasher, Duration.ofMillis(10));
+        createUser("new_user", "pass", "USER");
+
+        for (int i = 0; i < 100 && subject.size() < 11; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(11, subject.size());
+        verify(broken, atLeast(3)).getConnection();
+    }
+
+    private void createUser(String username, String password, String... groups) throws SQLException {
+        final StringBuilder sql = new StringBuilder("INSERT INTO users (username, password) VALUES('")
+                .append(username).append("', '").append(hasher.encode(password)).append("');");
+        for (String g : groups) {
+            sql.append("INSERT INTO groups (username, usergroup) VALUES('")
+               .append(username).append("', '").append(g).append("');");
+        }
+        execute(sql.toString());
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+            s.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.sterl.identitystore.jdbc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ReplicaDataSourceRouterTest {
+
+    DataSource primary;
+    DataSource replica1;
+    DataSource replica2;
+
+    @BeforeEach
+    void before() throws Exception {
+        primary = createDb("primary");
+        replica1 = createDb("replica1");
+        replica2 = createDb("replica2");
+    }
+
+    @Test
+    void testReadsFromReplica() throws Exception {
+        final ReplicaDataSourceRouter subject = new ReplicaDataSourceRouter(primary,
+                Arrays.asList(replica1), null);
+
+        assertEquals("replica1", subject.read(ReplicaDataSourceRouterTest::dbName));
+    }
+
+    @Test
+    void testLeastOutstandingReplica() throws Exception {
+        final ReplicaDataSourceRouter subject = new ReplicaDataSourceRouter(primary,
+                Arrays.asList(replica1, replica2), null);
+
+        for (int i = 0; i < 10; i++) {
+            // the nested read should never use the replica which is busy
+            final String[] nested = new String[1];
+            final String outer = subject.read(c -> {
+                nested[0] = subject.read(ReplicaDataSourceRouterTest::dbName);
+                return dbName(c);
+            });
+            assertNotEquals(outer, nested[0]);
+            assertTrue(nested[0].startsWith("replica"));
+        }
+    }
+
+    @Test
+    void testSkipsFailedReplica() throws Exception {
+        final DataSource broken = mock(DataSource.class);
+        when(broken.getConnection()).thenThrow(new SQLException("down"));
+        final ReplicaDataSourceRouter subject = new ReplicaDataSourceRouter(primary,
+                Arrays.asList(broken, replica2), Duration.ofSeconds(50), null, fixedClock(1_000));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("replica2", subject.read(ReplicaDataSourceRouterTest::dbName));
+        }
+        assertFalse(subject.getReplicas().get(0).isAvailable(50_999));
+        assertTrue(subject.getReplicas().get(0).isAvailable(51_000));
+    }
+
+    @Test
+    void testFallbackToPrimary() throws Exception {
+        final DataSource broken = mock(DataSource.class);
+        when(broken.getConnection()).thenThrow(new SQLException("down"));
+        final ReplicaDataSourceRouter subject = new ReplicaDataSourceRouter(primary,
+                Arrays.asList(broken, broken), null);
+
+        assertEquals("primary", subject.read(ReplicaDataSourceRouterTest::dbName));
+        // both replicas are in backoff now
+        assertEquals("primary", subject.read(ReplicaDataSourceRouterTest::dbName));
+    }
+
+    @Test
+    void testRecoversAfterBackoff() throws Exception {
+        final DataSource flaky = mock(DataSource.class);
+        when(flaky.getConnection())
+            .thenThrow(new SQLException("down"))
+            .thenAnswer(i -> replica1.getConnection());
+        final AtomicLong time = new AtomicLong(1_000);
+        final Clock clock = mock(Clock.class);
+        when(clock.millis()).thenAnswer(i -> time.get());
+        final ReplicaDataSourceRouter subject = new ReplicaDataSourceRouter(primary,
+                Arrays.asList(flaky), Duration.ofSeconds(10), null, clock);
+
+        assertEquals("primary", subject.read(ReplicaDataSourceRouterTest::dbName));
+        time.addAndGet(9_999);
+        assertEquals("primary", subject.read(ReplicaDataSourceRouterTest::dbName));
+        time.incrementAndGet();
+        assertEquals("replica1", subject.read(ReplicaDataSourceRouterTest::dbName));
+        assertTrue(subject.getReplicas().get(0).isAvailable(time.get()));
+    }
+
+    @Test
+    void testSharesAcquireTimeoutOverAllNodes() throws Exception {
+        final ReplicaDataSourceRouter subject = new ReplicaDataSourceRouter(primary,
+                Arrays.asList(replica1, replica2), null, new Bulkhead(1, Duration.ofSeconds(1)));
+        final CountDownLatch busy = new CountDownLatch(3);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<ReplicaDataSourceRouter.Node> nodes = new ArrayList<>(subject.getReplicas());
+        nodes.add(subject.getPrimary());
+        final ExecutorService executor = Executors.newFixedThreadPool(nodes.size());
+        try {
+            // take the only connection of each node
+            for (ReplicaDataSourceRouter.Node node : nodes) {
+                executor.submit(() -> node.getPool().execute(s -> {
+                    busy.countDown();
+                    BulkheadConnectionPoolTest.await(release);
+                    return null;
+                }));
+            }
+            assertTrue(busy.await(5, TimeUnit.SECONDS));
+
+            final long start = System.nanoTime();
+            assertThrows(BulkheadConnectionPool.BulkheadFullException.class, 
+                    () -> subject.read(ReplicaDataSourceRouterTest::dbName));
+            final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // one timeout for all three nodes, not one for each node
+            assertTrue(waited >= 1_000 && waited < 2_000, "Waited " + waited + "ms");
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        // a busy replica isn't marked as failed
+        assertTrue(subject.getReplicas().get(0).isAvailable(System.currentTimeMillis()));
+    }
+
+    private static Clock fixedClock(long millis) {
+        final Clock result = mock(Clock.class);
+        when(result.millis()).thenReturn(millis);
+        return result;
+    }
+
+    private static String dbName(JdbcSession s) throws SQLException {
+        return s.getConnection().getCatalog().toLowerCase();
+    }
+
+    private static DataSource createDb(String name) throws SQLException {
+        final JdbcDataSource ds = new JdbcDataSource();
+        ds.setUrl("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        ds.setUser("sa");
+        try (Connection c = ds.getConnection(); Statement s = c.createStatement()) {
+            s.execute("SELECT 1");
+        }
+        return ds;
+    }
+}
@@ -0,0 +1,184 @@
+package org.sterl.identitystore.shard;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.sterl.hash.Algorithm;
+import org.sterl.hash.BCryptPbkdf2PasswordHash;
+import org.sterl.identitystore.api.Identity;
+import org.sterl.identitystore.api.IdentityStore;
+import org.sterl.identitystore.api.VerificationResult;
+import org.sterl.identitystore.api.VerificationResult.Status;
+import org.sterl.identitystore.builder.IdentityStoreBuilder;
+import org.sterl.identitystore.cache.CachedIdentityStore;
+import org.sterl.identitystore.jdbc.JdbcSnapshotIdentityStore;
+
+class ShardedIdentityStoreTest {
+
+    final BCryptPbkdf2PasswordHash hasher = new BCryptPbkdf2PasswordHash(Algorithm.PBKDF2WithHmacSHA224);
+    final ConsistentHashShardFunction shardFunction = new ConsistentHashShardFunction(3);
+    final List<DataSource> shards = new ArrayList<>();
+
+    @BeforeEach
+    void before() throws Exception {
+        final String schema = new String(Files.readAllBytes(Paths.get(
+                getClass().getResource("/drop-create-default-shema.sql").getFile())));
+        shards.clear();
+        for (int i = 0; i < 3; i++) {
+            final JdbcDataSource ds = new JdbcDataSource();
+            ds.setUrl("jdbc:h2:mem:shard_" + i + ";DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+            ds.setUser("sa");
+            try (Connection c = ds.getConnection(); Statement s = c.createStatement()) {
+                s.execute(schema);
+            }
+            shards.add(ds);
+        }
+        for (int i = 0; i < 30; i++) {
+            createUser("user_" + i, "pass_" + i, "SHARD_" + shardFunction.shardOf("user_" + i));
+        }
+    }
+
+    @Test
+    void testRoutesToOwningShard() {
+        final IdentityStore subject = IdentityStoreBuilder.jdbcBuilder(shards.get(0))
+                .withShards(shards.get(1), shards.get(2))
+                .withPasswordHasher(hasher)
+                .build();
+
+        for (int i = 0; i < 30; i++) {
+            final VerificationResult result = subject.verify("user_" + i, "pass_" + i);
+            assertEquals(Status.VALID, result.getStatus());
+            assertEquals(Identity.from("SHARD_" + shardFunction.shardOf("user_" + i)), result.getGroups());
+        }
+        assertEquals(VerificationResult.NOT_FOUND, subject.verify("foo", "bar"));
+    }
+
+    @Test
+    void testLoadAllInParallel() {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final ShardedIdentityStore subject = (ShardedIdentityStore) IdentityStoreBuilder.jdbcBuilder(shards.get(0))
+                    .withShards(shards.get(1), shards.get(2))
+                    .withPasswordHasher(hasher)
+                    .withShardExecutor(executor)
+                    .build();
+
+            final List<String> usernames = new ArrayList<>();
+            for (int i = 0; i < 30; i++) usernames.add("user_" + i);
+            usernames.add("unknown");
+
+            final Map<String, Identity> result = subject.loadAll(usernames);
+            assertEquals(31, result.size());
+            assertEquals("user_7", result.get("user_7").getUsername());
+            assertSame(Identity.NOT_FOUND, result.get("unknown"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testShardsWithCache() {
+        try (ShardedIdentityStore subject = (ShardedIdentityStore) IdentityStoreBuilder.jdbcBuilder(shards.get(0))
+                .withShards(shards.get(1), shards.get(2))
+                .withPasswordHasher(hasher)
+                .withCache(Duration.ofMinutes(1))
+                .build()) {
+
+            for (int i = 0; i < 30; i++) {
+                assertFalse(subject.verify("user_" + i, "pass_" + i).isCacheHit());
+                final VerificationResult result = subject.verify("user_" + i, "pass_" + i);
+                assertEquals(Status.VALID, result.getStatus());
+                assertTrue(result.isCacheHit());
+            }
+            assertTrue(subject.getShards().get(0) instanceof CachedIdentityStore);
+        }
+    }
+
+    @Test
+    void testShardsWithSnapshot() {
+        try (ShardedIdentityStore subject = (ShardedIdentityStore) IdentityStoreBuilder.jdbcBuilder(shards.get(0))
+                .withShards(shards.get(1), shards.get(2))
+                .withPasswordHasher(hasher)
+                .withInMemorySnapshot(Duration.ofMinutes(1))
+                .build()) {
+
+            for (int i = 0; i < 30; i++) {
+                final VerificationResult result = subject.verify("user_" + i, "pass_" + i);
+                assertEquals(Status.VALID, result.getStatus());
+                assertEquals(Identity.from("SHARD_" + shardFunction.shardOf("user_" + i)), result.getGroups());
+            }
+            int users = 0;
+            for (IdentityStore shard : subject.getShards()) users += ((JdbcSnapshotIdentityStore) shard).size();
+            assertEquals(30, users);
+        }
+    }
+
+    @Test
+    void testClosesAllShards() throws Exception {
+        final IdentityStore shard1 = mock(IdentityStore.class);
+        final IdentityStore shard2 = mock(IdentityStore.class);
+        doThrow(new IllegalStateException("broken")).when(shard1).close();
+        final ShardedIdentityStore subject = new ShardedIdentityStore(Arrays.asList(shard1, shard2));
+
+        assertThrows(IllegalStateException.class, () -> subject.close());
+        verify(shard1).close();
+        verify(shard2).close();
+    }
+
+    @Test
+    void testConsistentHashMovesFewUsers() {
+        final ConsistentHashShardFunction four = new ConsistentHashShardFunction(4);
+        final int[] perShard = new int[3];
+        int moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            final int shard = shardFunction.shardOf("user_" + i);
+            ++perShard[shard];
+            if (shard != four.shardOf("user_" + i)) ++moved;
+        }
+        // only the users of the new shard should move, ideally 1/4
+        assertTrue(moved < 10_000 / 3, "Moved " + moved);
+        for (int count : perShard) {
+            assertTrue(count > 10_000 / 3 * 0.7, "Bad distribution " + count);
+        }
+    }
+
+    private void createUser(String username, String password, String group) throws SQLException {
+        try (Connection c = shards.get(shardFunction.shardOf(username)).getConnection()) {
+            try (PreparedStatement s = c.prepareStatement("INSERT INTO users (username, password) VALUES(?, ?)")) {
+                s.setString(1, username);
+                s.setString(2, hasher.encode(password));
+                s.execute();
+            }
+            try (PreparedStatement s = c.prepareStatement("INSERT INTO groups (username, usergroup) VALUES(?, ?)")) {
+                s.setString(1, username);
+                s.setString(2, group);
+                s.execute();
+            }
+        }
+    }
+}
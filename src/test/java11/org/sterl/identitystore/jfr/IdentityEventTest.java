@@ -0,0 +1,95 @@
+package org.sterl.identitystore.jfr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.sterl.hash.Algorithm;
+import org.sterl.identitystore.api.IdentityStore;
+import org.sterl.identitystore.api.VerificationResult.Status;
+import org.sterl.identitystore.builder.IdentityStoreBuilder;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+class IdentityEventTest {
+
+    JdbcDataSource dataSource;
+    IdentityStore subject;
+
+    @BeforeEach
+    void before() throws Exception {
+        dataSource = new JdbcDataSource();
+        dataSource.setUrl("jdbc:h2:mem:jfr;DB_CLOSE_DELAY=-1;MODE=PostgreSQL");
+        dataSource.setUser("sa");
+        subject = IdentityStoreBuilder.jdbcBuilder(dataSource)
+                .withHashAlgorithm(Algorithm.PBKDF2WithHmacSHA224)
+                .withCache(Duration.ofMinutes(1))
+                .build();
+
+        try (Connection c = dataSource.getConnection(); Statement s = c.createStatement()) {
+            s.execute(new String(Files.readAllBytes(Paths.get(
+                    getClass().getResource("/drop-create-default-shema.sql").getFile()))));
+            s.execute("INSERT INTO users (username, password) VALUES('user', '"
+                    + subject.getPasswordHasher().encode("pass") + "')");
+        }
+    }
+
+    @Test
+    void testIsSupported() {
+        assertTrue(IdentityEvent.isSupported());
+    }
+
+    @Test
+    void testRecordsEvents() throws Exception {
+        final List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("org.sterl.identitystore.Query").withThreshold(Duration.ZERO);
+            recording.enable("org.sterl.identitystore.Cache").withThreshold(Duration.ZERO);
+            recording.enable("org.sterl.identitystore.PasswordHash").withThreshold(Duration.ZERO);
+            recording.start();
+
+            assertEquals(Status.VALID, subject.verify("user", "pass").getStatus());
+            assertEquals(Status.INVALID_PASSWORD, subject.verify("user", "foo").getStatus());
+
+            recording.stop();
+            final Path file = Files.createTempFile("identity", ".jfr");
+            try {
+                recording.dump(file);
+                events = RecordingFile.readAllEvents(file);
+            } finally {
+                Files.delete(file);
+            }
+        }
+
+        final List<String> outcomes = events.stream()
+                .filter(e -> e.getEventType().getName().startsWith("org.sterl.identitystore."))
+                .map(e -> e.getEventType().getName().substring(24) + ":" + e.getString("outcome"))
+                .collect(Collectors.toList());
+        assertTrue(outcomes.contains("Cache:MISS"), outcomes.toString());
+        assertTrue(outcomes.contains("Cache:HIT"), outcomes.toString());
+        assertTrue(outcomes.contains("Query:FOUND"), outcomes.toString());
+        assertTrue(outcomes.contains("PasswordHash:VALID"), outcomes.toString());
+        assertTrue(outcomes.contains("PasswordHash:INVALID"), outcomes.toString());
+
+        for (RecordedEvent e : events) {
+            if (e.getEventType().getName().startsWith("org.sterl.identitystore.")) {
+                assertEquals("user".hashCode(), e.getInt("usernameHash"));
+                assertFalse(e.getDuration().isNegative());
+            }
+        }
+    }
+}